@@ -0,0 +1,95 @@
+package hudson.plugins.xvnc;
+
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.model.TaskListener;
+import java.io.IOException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.Timer;
+
+/**
+ * Runs the external commands needed to set up and tear down a display with a bounded duration.
+ * A command still running after its timeout is killed, as is a command whose caller is interrupted,
+ * so that a wedged X server cannot hold an executor forever.
+ */
+final class CommandRunner {
+
+    private static final Logger LOGGER = Logger.getLogger(CommandRunner.class.getName());
+
+    /**
+     * Seconds allowed for quick probes such as detecting the VNC command.
+     */
+    static long PROBE_TIMEOUT = Long.getLong(CommandRunner.class.getName() + ".probeTimeout", 30);
+
+    /**
+     * Seconds allowed for <code>vncserver</code> to start a server in the background.
+     */
+    static long START_TIMEOUT = Long.getLong(CommandRunner.class.getName() + ".startTimeout", 60);
+
+    /**
+     * Seconds allowed for capturing a screenshot.
+     */
+    static long SCREENSHOT_TIMEOUT = Long.getLong(CommandRunner.class.getName() + ".screenshotTimeout", 60);
+
+    /**
+     * Seconds allowed for stopping a server.
+     */
+    static long STOP_TIMEOUT = Long.getLong(CommandRunner.class.getName() + ".stopTimeout", 30);
+
+    /**
+     * Seconds after which the duration of a command is shown in the build log, rather than only logged.
+     */
+    static long SLOW_THRESHOLD = Long.getLong(CommandRunner.class.getName() + ".slowThreshold", 10);
+
+    private CommandRunner() {}
+
+    /**
+     * Starts a command and waits for it.
+     * @param listener where to tell about the command if it is slow
+     * @return its exit code
+     * @throws IOException if it could not be started or had to be killed after the timeout
+     */
+    static int run(Launcher.ProcStarter starter, String description, long timeoutSeconds, TaskListener listener) throws IOException, InterruptedException {
+        return join(starter.start(), description, timeoutSeconds, listener);
+    }
+
+    /**
+     * Waits for a command which was already started.
+     * @see #run
+     */
+    static int join(final Proc proc, final String description, long timeoutSeconds, TaskListener listener) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        final AtomicBoolean timedOut = new AtomicBoolean();
+        ScheduledFuture<?> killer = Timer.get().schedule(new Runnable() {
+            @Override public void run() {
+                timedOut.set(true);
+                try {
+                    proc.kill();
+                } catch (Exception x) {
+                    LOGGER.log(Level.WARNING, "Could not kill " + description, x);
+                }
+            }
+        }, timeoutSeconds, TimeUnit.SECONDS);
+        try {
+            int exit = proc.join();
+            if (timedOut.get()) {
+                throw new IOException("'" + description + "' did not complete within " + timeoutSeconds + " seconds and was killed");
+            }
+            return exit;
+        } catch (InterruptedException x) {
+            proc.kill();
+            throw x;
+        } finally {
+            killer.cancel(false);
+            long took = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            LOGGER.log(Level.FINE, "''{0}'' took {1} ms", new Object[] {description, took});
+            if (took >= TimeUnit.SECONDS.toMillis(SLOW_THRESHOLD)) {
+                listener.getLogger().println("'" + description + "' took " + took + " ms");
+            }
+        }
+    }
+}
@@ -2,11 +2,22 @@ package hudson.plugins.xvnc;
 
 import hudson.model.Saveable;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
 
 /**
  * Manages the display numbers in use.
@@ -16,18 +27,48 @@ import java.util.logging.Logger;
 final class DisplayAllocator {
 
     public static final Random RANDOM = new Random();
-    transient Saveable owner;
+
+    /**
+     * How many recent timings are kept for {@link Snapshot#getTimings}.
+     */
+    private static final int MAX_TIMINGS = 20;
+
+    /**
+     * Set when loaded or created, by whoever holds the lock of the owner, and read without it.
+     */
+    transient volatile Saveable owner;
 
     /**
      * Display numbers in use.
+     * Both sets are replaced rather than modified, while holding the monitor,
+     * since {@link #save} serializes them outside of it.
+     */
+    private volatile Set<Integer> allocatedNumbers = new HashSet<Integer>();
+    private volatile Set<Integer> blacklistedNumbers = new HashSet<Integer>();
+
+    /**
+     * Who holds which allocated display, as far as known since startup.
+     */
+    private transient Map<Integer,Lease> leases = new HashMap<Integer,Lease>();
+    private transient Deque<Timing> timings = new ArrayDeque<Timing>();
+
+    /**
+     * Immutable copy of the state, republished on every change so that readers never need the monitor.
      */
-    private final Set<Integer> allocatedNumbers = new HashSet<Integer>();
-    private final Set<Integer> blacklistedNumbers = new HashSet<Integer>();
+    private transient volatile Snapshot snapshot = new Snapshot(this);
 
     public DisplayAllocator() {
     }
 
+    private Object readResolve() {
+        leases = new HashMap<Integer,Lease>();
+        timings = new ArrayDeque<Timing>();
+        snapshot = new Snapshot(this);
+        return this;
+    }
+
     private void save() {
+        Saveable owner = this.owner;
         if (owner != null) {
             try {
                 owner.save();
@@ -37,6 +78,26 @@ final class DisplayAllocator {
         }
     }
 
+    private static Set<Integer> with(Set<Integer> numbers, int n) {
+        Set<Integer> copy = new HashSet<Integer>(numbers);
+        copy.add(n);
+        return copy;
+    }
+
+    private static Set<Integer> without(Set<Integer> numbers, int n) {
+        if (!numbers.contains(n)) {
+            return numbers;
+        }
+        Set<Integer> copy = new HashSet<Integer>(numbers);
+        copy.remove(n);
+        return copy;
+    }
+
+    private void publish() {
+        assert Thread.holdsLock(this);
+        snapshot = new Snapshot(this);
+    }
+
     private int getRandomValue(final int min, final int max) {
         return min + (RANDOM.nextInt(getRange(min, max)));
     }
@@ -46,16 +107,24 @@ final class DisplayAllocator {
     }
 
     public int allocate(final int minDisplayNumber, final int maxDisplayNumber) {
+        return allocate(minDisplayNumber, maxDisplayNumber, null);
+    }
+
+    /**
+     * Allocates a display number.
+     * @param holder description of who the display is for, such as a build
+     */
+    public int allocate(final int minDisplayNumber, final int maxDisplayNumber, @CheckForNull String holder) {
         try {
-            return doAllocate(minDisplayNumber, maxDisplayNumber);
+            return doAllocate(minDisplayNumber, maxDisplayNumber, holder);
         } finally {
             save();
         }
     }
-    private synchronized int doAllocate(final int minDisplayNumber, final int maxDisplayNumber) {
+    private synchronized int doAllocate(final int minDisplayNumber, final int maxDisplayNumber, @CheckForNull String holder) {
         if (noDisplayNumbersLeft(minDisplayNumber, maxDisplayNumber)) {
             if (!blacklistedNumbers.isEmpty()) {
-                blacklistedNumbers.clear();
+                blacklistedNumbers = new HashSet<Integer>();
             } else {
                 throw new RuntimeException("All available display numbers are allocated or " +
                         "blacklisted.\nallocated: " + allocatedNumbers.toString() +
@@ -66,7 +135,11 @@ final class DisplayAllocator {
         do {
             displayNumber = getRandomValue(minDisplayNumber, maxDisplayNumber);
         } while(isNotAvailable(displayNumber));
-        allocatedNumbers.add(displayNumber);
+        allocatedNumbers = with(allocatedNumbers, displayNumber);
+        if (holder != null) {
+            leases.put(displayNumber, new Lease(displayNumber, holder, System.currentTimeMillis()));
+        }
+        publish();
         return displayNumber;
     }
 
@@ -78,19 +151,179 @@ final class DisplayAllocator {
         return allocatedNumbers.size() + blacklistedNumbers.size() >= getRange(min, max);
     }
 
+    /**
+     * Marks a display number chosen elsewhere as allocated, such as by {@link HostDisplays}.
+     * @param holder description of who the display is for, such as a build
+     */
+    public void reserve(int n, @CheckForNull String holder) {
+        synchronized (this) {
+            blacklistedNumbers = without(blacklistedNumbers, n);
+            allocatedNumbers = with(allocatedNumbers, n);
+            if (holder != null) {
+                leases.put(n, new Lease(n, holder, System.currentTimeMillis()));
+            }
+            publish();
+        }
+        save();
+    }
+
     public void free(int n) {
         synchronized (this) {
-            allocatedNumbers.remove(n);
+            allocatedNumbers = without(allocatedNumbers, n);
+            leases.remove(n);
+            publish();
         }
         save();
     }
 
     public void blacklist(int badDisplay) {
         synchronized (this) {
-            allocatedNumbers.remove(badDisplay);
-            blacklistedNumbers.add(badDisplay);
+            allocatedNumbers = without(allocatedNumbers, badDisplay);
+            leases.remove(badDisplay);
+            blacklistedNumbers = with(blacklistedNumbers, badDisplay);
+            publish();
         }
         save();
     }
 
+    /**
+     * Makes a blacklisted display available again, e.g. after its stale lock was cleaned up.
+     */
+    public void unblacklist(int display) {
+        boolean changed;
+        synchronized (this) {
+            changed = blacklistedNumbers.contains(display);
+            blacklistedNumbers = without(blacklistedNumbers, display);
+            publish();
+        }
+        if (changed) {
+            save();
+        }
+    }
+
+    /**
+     * Remembers how long some phase of using a display took, for monitoring.
+     */
+    public synchronized void recordTiming(String phase, long millis) {
+        if (timings.size() >= MAX_TIMINGS) {
+            timings.removeFirst();
+        }
+        timings.addLast(new Timing(phase, millis, System.currentTimeMillis()));
+        publish();
+    }
+
+    public Set<Integer> getAllocatedNumbers() {
+        return snapshot.allocated;
+    }
+
+    /**
+     * Current state, without blocking.
+     */
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Immutable view of an allocator at some point in time.
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static final class Snapshot {
+
+        private final Set<Integer> allocated;
+        private final Set<Integer> blacklisted;
+        private final List<Lease> leases;
+        private final List<Timing> timings;
+        private final long timestamp;
+
+        Snapshot(DisplayAllocator allocator) {
+            allocated = Collections.unmodifiableSet(new TreeSet<Integer>(allocator.allocatedNumbers));
+            blacklisted = Collections.unmodifiableSet(new TreeSet<Integer>(allocator.blacklistedNumbers));
+            leases = Collections.unmodifiableList(new ArrayList<Lease>(allocator.leases.values()));
+            timings = Collections.unmodifiableList(new ArrayList<Timing>(allocator.timings));
+            timestamp = System.currentTimeMillis();
+        }
+
+        @Exported
+        public Set<Integer> getAllocated() {
+            return allocated;
+        }
+
+        @Exported
+        public Set<Integer> getBlacklisted() {
+            return blacklisted;
+        }
+
+        @Exported
+        public List<Lease> getLeases() {
+            return leases;
+        }
+
+        @Exported
+        public List<Timing> getTimings() {
+            return timings;
+        }
+
+        @Exported
+        public long getTimestamp() {
+            return timestamp;
+        }
+    }
+
+    @ExportedBean(defaultVisibility = 3)
+    public static final class Lease {
+
+        private final int displayNumber;
+        private final String holder;
+        private final long since;
+
+        Lease(int displayNumber, String holder, long since) {
+            this.displayNumber = displayNumber;
+            this.holder = holder;
+            this.since = since;
+        }
+
+        @Exported
+        public int getDisplayNumber() {
+            return displayNumber;
+        }
+
+        @Exported
+        public String getHolder() {
+            return holder;
+        }
+
+        @Exported
+        public long getSince() {
+            return since;
+        }
+    }
+
+    @ExportedBean(defaultVisibility = 3)
+    public static final class Timing {
+
+        private final String phase;
+        private final long millis;
+        private final long timestamp;
+
+        Timing(String phase, long millis, long timestamp) {
+            this.phase = phase;
+            this.millis = millis;
+            this.timestamp = timestamp;
+        }
+
+        @Exported
+        public String getPhase() {
+            return phase;
+        }
+
+        @Exported
+        public long getMillis() {
+            return millis;
+        }
+
+        @Exported
+        public long getTimestamp() {
+            return timestamp;
+        }
+    }
 }
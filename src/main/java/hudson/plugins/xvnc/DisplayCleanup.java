@@ -0,0 +1,337 @@
+package hudson.plugins.xvnc;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.CheckForNull;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Everything done when a build is done with its display, in as few calls to the agent as possible:
+ * the final screenshot, stopping the recording and the on-demand screenshots, stopping the server and checking that it is gone,
+ * and removing what it leaves behind.
+ * <p>
+ * The files are handled by this callable and {@link Finish} on the agent; the screenshot is captured and the server stopped
+ * through the {@link Launcher} of the build, so that they run where and as the server was started, e.g. inside a container.
+ * <p>
+ * Called on the directory of the {@link ScreenshotQueue} of the display, where all files to archive are gathered;
+ * the controller archives them in one go. They are left there, and deleted by the next cleanup of the display
+ * rather than by a remote call of their own.
+ */
+final class DisplayCleanup extends MasterToSlaveFileCallable<DisplayCleanup.Result> {
+
+    private static final long serialVersionUID = 1;
+
+    private static final String RAW_SCREENSHOT = ".xvnc-screenshot.png";
+
+    private final int displayNumber;
+    private final Map<String,String> xauthorityEnv;
+    @CheckForNull
+    private final String vncserverCommand;
+    /**
+     * How to encode the final screenshot, or null to take none.
+     */
+    @CheckForNull
+    private final ScreenshotEncoder screenshot;
+    /**
+     * Whether the final screenshot goes to the {@link ScreenshotStore} rather than among the artifacts.
+     */
+    private final boolean storeScreenshot;
+    @CheckForNull
+    private final String xauthorityPath;
+    @CheckForNull
+    private final String recordingPath;
+    @CheckForNull
+    private final String recordingId;
+    private final boolean screenshotQueue;
+    @CheckForNull
+    private final String lazyServerId;
+    @CheckForNull
+    private final String serverLogId;
+    private final boolean verboseServerLog;
+    private final TaskListener listener;
+
+    DisplayCleanup(int displayNumber, Map<String,String> xauthorityEnv, @CheckForNull String vncserverCommand, @CheckForNull ScreenshotEncoder screenshot,
+            boolean storeScreenshot, @CheckForNull String xauthorityPath, @CheckForNull String recordingPath, @CheckForNull String recordingId, boolean screenshotQueue,
+            @CheckForNull String lazyServerId, @CheckForNull String serverLogId, boolean verboseServerLog,
+            TaskListener listener) {
+        this.displayNumber = displayNumber;
+        this.xauthorityEnv = new HashMap<String,String>(xauthorityEnv);
+        this.vncserverCommand = vncserverCommand;
+        this.screenshot = screenshot;
+        this.storeScreenshot = storeScreenshot;
+        this.xauthorityPath = xauthorityPath;
+        this.recordingPath = recordingPath;
+        this.recordingId = recordingId;
+        this.screenshotQueue = screenshotQueue;
+        this.lazyServerId = lazyServerId;
+        this.serverLogId = serverLogId;
+        this.verboseServerLog = verboseServerLog;
+        this.listener = listener;
+    }
+
+    /**
+     * What the controller needs to finish up.
+     */
+    static final class Result implements Serializable {
+
+        private static final long serialVersionUID = 1;
+
+        /**
+         * Whether the server was running, rather than waiting for its first client.
+         */
+        boolean started = true;
+        /**
+         * Whether the server may still hold the display, which should then be kept off limits.
+         */
+        boolean stuck;
+        /**
+         * Files to archive, by artifact path, relative to the directory the cleanup was called on.
+         */
+        final Map<String,String> artifacts = new TreeMap<String,String>();
+        long recordingSize = -1;
+        /**
+         * Counts of {@link ScreenshotQueue.Stop}, if there was a queue.
+         */
+        @CheckForNull
+        int[] screenshots;
+        /**
+         * Hash of the final screenshot, if it is to be stored.
+         */
+        @CheckForNull
+        String screenshotHash;
+    }
+
+    /**
+     * Does the whole cleanup.
+     */
+    Result perform(FilePath dir, Launcher launcher) throws IOException, InterruptedException {
+        PrintStream logger = listener.getLogger();
+        Result result = dir.act(this);
+        if (result.started && screenshot != null) {
+            logger.println(Messages.Xvnc_TAKING_SCREENSHOT());
+            try {
+                capture(dir, launcher);
+                result.screenshotHash = dir.act(new Encode(screenshot, storeScreenshot));
+                if (!storeScreenshot) {
+                    result.artifacts.put(screenshot.getFileName(), screenshot.getFileName());
+                }
+            } catch (IOException x) {
+                x.printStackTrace(logger);
+            }
+        }
+        boolean stopped = false;
+        if (result.started) {
+            logger.println(Messages.Xvnc_TERMINATING());
+            stopped = stop(launcher);
+            result.stuck = !stopped;
+        }
+        result.stuck |= !dir.act(new Finish(displayNumber, stopped, serverLogId, verboseServerLog || result.stuck, xauthorityPath, listener));
+        return result;
+    }
+
+    /**
+     * Stops what runs on the agent before the server is stopped, and gathers the files to archive.
+     */
+    @Override
+    public Result invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+        PrintStream logger = listener.getLogger();
+        Result result = new Result();
+        Files.createDirectories(dir.toPath());
+        if (screenshotQueue) {
+            result.screenshots = new ScreenshotQueue.Stop().invoke(dir, channel);
+        }
+        File[] leftovers = dir.listFiles();
+        if (leftovers != null) {
+            for (File file : leftovers) {
+                // The screenshots taken on request during this build are kept; older ones were cleared when the queue started.
+                if (!(screenshotQueue && file.getName().equals(ScreenshotQueue.OUT))) {
+                    Util.deleteRecursive(file);
+                }
+            }
+        }
+        if (screenshotQueue) {
+            File[] queued = new File(dir, ScreenshotQueue.OUT).listFiles();
+            if (queued != null) {
+                for (File file : queued) {
+                    if (!file.getName().endsWith(".tmp")) {
+                        result.artifacts.put(ScreenshotArchiver.ARTIFACTS + "/" + file.getName(), ScreenshotQueue.OUT + "/" + file.getName());
+                    }
+                }
+            }
+        }
+        if (lazyServerId != null) {
+            result.started = new LazyServer.Stop(lazyServerId).call();
+            if (!result.started) {
+                logger.println(Messages.Xvnc_NOT_STARTED(displayNumber));
+            }
+        }
+        if (recordingId != null && recordingPath != null) {
+            try {
+                result.recordingSize = new SessionRecording.Stop(recordingId).call();
+                File recording = new File(recordingPath);
+                if (result.recordingSize > 0) {
+                    Files.move(recording.toPath(), new File(dir, SessionRecording.FILENAME).toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    result.artifacts.put(SessionRecording.FILENAME, SessionRecording.FILENAME);
+                } else {
+                    Files.deleteIfExists(recording.toPath());
+                }
+            } catch (InterruptedException x) {
+                throw x;
+            } catch (Exception x) {
+                x.printStackTrace(logger);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Uses several means to capture the screen, failing if none worked.
+     */
+    private void capture(FilePath dir, Launcher launcher) throws IOException, InterruptedException {
+        String display = ":" + displayNumber;
+        String raw = dir.child(RAW_SCREENSHOT).getRemote();
+        String[][] commandSets = {
+                {"import", "-window", "root", "-display", display, raw},
+                {"gnome-screenshot", "--display", display, "--file", raw}
+        };
+        IOException err = null;
+        for (String[] commandSet : commandSets) {
+            try {
+                if (CommandRunner.run(launcher.launch().cmds(commandSet).envs(xauthorityEnv).pwd(dir).stdout(listener),
+                        commandSet[0], CommandRunner.SCREENSHOT_TIMEOUT, listener) == 0) {
+                    return;
+                }
+                throw new IOException(commandSet[0] + " failed");
+            } catch (IOException x) {
+                if (err == null) {
+                    err = new IOException("Failed to capture screenshot");
+                }
+                err.addSuppressed(x);
+            }
+        }
+        throw err;
+    }
+
+    /**
+     * Asks the server to stop.
+     * @return false if it may still hold the display
+     */
+    private boolean stop(Launcher launcher) throws InterruptedException {
+        try {
+            if (vncserverCommand != null) {
+                // #173: stopping the wrapper script will accomplish nothing. It has already exited, in fact.
+                CommandRunner.run(launcher.launch().cmds(vncserverCommand, "-kill", ":" + displayNumber).envs(xauthorityEnv).stdout(listener),
+                        vncserverCommand + " -kill :" + displayNumber, CommandRunner.STOP_TIMEOUT, listener);
+            } else {
+                // Assume it can be shut down by being killed.
+                launcher.kill(xauthorityEnv);
+            }
+            return true;
+        } catch (IOException x) {
+            // The server may still hold the display; keep others off it until cleaned up.
+            listener.error(x.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Encodes the final screenshot, once captured.
+     * Returns its hash if it is to be stored, null otherwise.
+     */
+    static final class Encode extends MasterToSlaveFileCallable<String> {
+
+        private static final long serialVersionUID = 1;
+
+        private final ScreenshotEncoder screenshot;
+        private final boolean store;
+
+        Encode(ScreenshotEncoder screenshot, boolean store) {
+            this.screenshot = screenshot;
+            this.store = store;
+        }
+
+        @Override
+        public String invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+            screenshot.invoke(new File(dir, RAW_SCREENSHOT), channel);
+            if (!store) {
+                return null;
+            }
+            try (InputStream is = Files.newInputStream(new File(dir, screenshot.getFileName()).toPath())) {
+                return ScreenshotStore.sha256(is);
+            }
+        }
+    }
+
+    /**
+     * Waits for a stopped server to be gone and removes what it left behind, along with the log and Xauthority file of the display.
+     * Returns false if the server is still running.
+     */
+    static final class Finish extends MasterToSlaveFileCallable<Boolean> {
+
+        private static final long serialVersionUID = 1;
+
+        private final int displayNumber;
+        private final boolean stopped;
+        @CheckForNull
+        private final String serverLogId;
+        private final boolean verboseServerLog;
+        @CheckForNull
+        private final String xauthorityPath;
+        private final TaskListener listener;
+
+        Finish(int displayNumber, boolean stopped, @CheckForNull String serverLogId, boolean verboseServerLog, @CheckForNull String xauthorityPath,
+                TaskListener listener) {
+            this.displayNumber = displayNumber;
+            this.stopped = stopped;
+            this.serverLogId = serverLogId;
+            this.verboseServerLog = verboseServerLog;
+            this.xauthorityPath = xauthorityPath;
+            this.listener = listener;
+        }
+
+        @Override
+        public Boolean invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+            boolean gone = !stopped || awaitGone();
+            if (serverLogId != null) {
+                ServerLog.printTail(new ServerLog.Stop(serverLogId, verboseServerLog || !gone).call(), listener);
+            }
+            if (xauthorityPath != null) {
+                Files.deleteIfExists(new File(xauthorityPath).toPath());
+            }
+            return gone;
+        }
+
+        private boolean awaitGone() throws IOException, InterruptedException {
+            String pid = DisplayProbe.serverPid(displayNumber);
+            if (pid == null || !new File("/proc/self").isDirectory()) {
+                return true; // nothing to check
+            }
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(CommandRunner.STOP_TIMEOUT);
+            while (DisplayProbe.isAlive(pid)) {
+                if (System.nanoTime() > deadline) {
+                    listener.error("The X server on display :" + displayNumber + " (pid " + pid + ") is still running");
+                    return false;
+                }
+                Thread.sleep(100);
+            }
+            // Killed servers leave their lock behind, which would make the display look busy.
+            Files.deleteIfExists(DisplayProbe.lockFile(displayNumber).toPath());
+            Files.deleteIfExists(DisplayProbe.socketFile(displayNumber).toPath());
+            return true;
+        }
+    }
+}
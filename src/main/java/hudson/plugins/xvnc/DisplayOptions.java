@@ -0,0 +1,102 @@
+package hudson.plugins.xvnc;
+
+import hudson.Util;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.annotation.CheckForNull;
+
+/**
+ * Screen geometry, depth and resolution of a display, set on the server command line.
+ * Options set here replace the same options in the configured command line.
+ */
+final class DisplayOptions {
+
+    static final Pattern GEOMETRY = Pattern.compile("([1-9]\\d{1,4})x([1-9]\\d{1,4})");
+    static final List<Integer> DEPTHS = Arrays.asList(8, 16, 24, 32);
+
+    /**
+     * What Xvnc uses when not told otherwise.
+     */
+    private static final String DEFAULT_GEOMETRY = "1024x768";
+    private static final int DEFAULT_DEPTH = 24;
+
+    @CheckForNull
+    private final String geometry;
+    private final int depth;
+    private final int dpi;
+
+    /**
+     * @param geometry such as <code>1280x1024</code>, or null to keep the server default
+     * @param depth bits per pixel, or 0 to keep the server default
+     * @param dpi dots per inch, or 0 to keep the server default
+     */
+    DisplayOptions(@CheckForNull String geometry, int depth, int dpi) {
+        this.geometry = Util.fixEmptyAndTrim(geometry);
+        this.depth = depth;
+        this.dpi = dpi;
+    }
+
+    String[] apply(String[] cmds) {
+        List<String> result = new ArrayList<String>();
+        for (int i = 0; i < cmds.length; i++) {
+            if (i + 1 < cmds.length && isOverridden(cmds[i])) {
+                i++;
+            } else {
+                result.add(cmds[i]);
+            }
+        }
+        if (geometry != null) {
+            result.add("-geometry");
+            result.add(geometry);
+        }
+        if (depth > 0) {
+            result.add("-depth");
+            result.add(String.valueOf(depth));
+        }
+        if (dpi > 0) {
+            result.add("-dpi");
+            result.add(String.valueOf(dpi));
+        }
+        return result.toArray(new String[0]);
+    }
+
+    private boolean isOverridden(String option) {
+        return option.equals("-geometry") && geometry != null
+                || option.equals("-depth") && depth > 0
+                || option.equals("-dpi") && dpi > 0;
+    }
+
+    /**
+     * Estimates the framebuffer memory of the server started by a command line, options applied.
+     * @return width, height, depth and bytes
+     */
+    static long[] estimate(String[] cmds) {
+        String geometry = DEFAULT_GEOMETRY;
+        int depth = DEFAULT_DEPTH;
+        for (int i = 0; i + 1 < cmds.length; i++) {
+            if (cmds[i].equals("-geometry") && GEOMETRY.matcher(cmds[i + 1]).matches()) {
+                geometry = cmds[i + 1];
+            } else if (cmds[i].equals("-depth") && DEPTHS.contains(parse(cmds[i + 1]))) {
+                depth = parse(cmds[i + 1]);
+            }
+        }
+        Matcher m = GEOMETRY.matcher(geometry);
+        m.matches();
+        long width = Long.parseLong(m.group(1));
+        long height = Long.parseLong(m.group(2));
+        // 24 bit pixels take 32 bits, as any depth above 16
+        int bytesPerPixel = depth > 16 ? 4 : depth > 8 ? 2 : 1;
+        return new long[] {width, height, depth, width * height * bytesPerPixel};
+    }
+
+    private static int parse(String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException x) {
+            return -1;
+        }
+    }
+}
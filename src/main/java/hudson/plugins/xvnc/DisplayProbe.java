@@ -0,0 +1,124 @@
+package hudson.plugins.xvnc;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.CheckForNull;
+import jenkins.security.MasterToSlaveCallable;
+
+/**
+ * Tells from the files an X server keeps in <code>/tmp</code> whether it is running, on the agent.
+ */
+final class DisplayProbe {
+
+    private DisplayProbe() {}
+
+    static File lockFile(int displayNumber) {
+        return new File("/tmp/.X" + displayNumber + "-lock");
+    }
+
+    static File socketFile(int displayNumber) {
+        return new File("/tmp/.X11-unix/X" + displayNumber);
+    }
+
+    /**
+     * The process holding a display, according to its lock file.
+     */
+    @CheckForNull
+    static String serverPid(int displayNumber) throws IOException {
+        File lock = lockFile(displayNumber);
+        if (!lock.isFile()) {
+            return null;
+        }
+        String pid = new String(Files.readAllBytes(lock.toPath()), StandardCharsets.US_ASCII).trim();
+        return pid.matches("\\d+") ? pid : null;
+    }
+
+    /**
+     * Whether a process exists; assumed to when that cannot be told.
+     */
+    static boolean isAlive(String pid) {
+        if (!new File("/proc/self").isDirectory()) {
+            return true;
+        }
+        String stat;
+        try {
+            stat = new String(Files.readAllBytes(new File("/proc/" + pid + "/stat").toPath()), StandardCharsets.US_ASCII);
+        } catch (IOException x) {
+            return false;
+        }
+        // A killed process keeps its entry, in state Z, until its parent, or init if it was orphaned, has waited for it.
+        int end = stat.lastIndexOf(')');
+        return end < 0 || end + 2 >= stat.length() || stat.charAt(end + 2) != 'Z';
+    }
+
+    /**
+     * Whether the server of a display is running and can be connected to.
+     */
+    static final class Running extends MasterToSlaveCallable<Boolean,IOException> {
+
+        private static final long serialVersionUID = 1;
+
+        private final int displayNumber;
+
+        Running(int displayNumber) {
+            this.displayNumber = displayNumber;
+        }
+
+        @Override
+        public Boolean call() throws IOException {
+            if (!socketFile(displayNumber).exists()) {
+                return false;
+            }
+            String pid = serverPid(displayNumber);
+            return pid != null && isAlive(pid);
+        }
+    }
+
+    /**
+     * Whether the server of a display is running and is the process started with the given environment variables,
+     * rather than a socket left behind by an earlier server or one belonging to another user.
+     */
+    static final class StartedWith extends MasterToSlaveCallable<Boolean,IOException> {
+
+        private static final long serialVersionUID = 1;
+
+        private final int displayNumber;
+        private final Map<String,String> envs;
+
+        StartedWith(int displayNumber, Map<String,String> envs) {
+            this.displayNumber = displayNumber;
+            this.envs = envs;
+        }
+
+        @Override
+        public Boolean call() throws IOException {
+            if (!socketFile(displayNumber).exists()) {
+                return false;
+            }
+            String pid = serverPid(displayNumber);
+            if (pid == null || !isAlive(pid)) {
+                return false;
+            }
+            if (!new File("/proc/self").isDirectory()) {
+                return true; // cannot be told apart here
+            }
+            List<String> variables;
+            try {
+                variables = Arrays.asList(new String(Files.readAllBytes(new File("/proc/" + pid + "/environ").toPath()), StandardCharsets.UTF_8).split("\0"));
+            } catch (IOException x) {
+                return false; // gone, or not ours to look at
+            }
+            for (Map.Entry<String,String> e : envs.entrySet()) {
+                if (!variables.contains(e.getKey() + "=" + e.getValue())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
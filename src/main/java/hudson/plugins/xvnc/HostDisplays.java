@@ -0,0 +1,254 @@
+package hudson.plugins.xvnc;
+
+import hudson.remoting.VirtualChannel;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import jenkins.security.MasterToSlaveCallable;
+
+/**
+ * Display numbers available to a build on some node.
+ * <p>
+ * By default the {@link DisplayAllocator} of the node decides alone. With a lock directory,
+ * displays are coordinated across all agents running on the same host, which share the X11 namespace
+ * but not an allocator: a display is only used while its lock file in that directory is locked,
+ * and the lock is held by the agent JVM until the display is freed. The allocator then just caches what is in use.
+ */
+final class HostDisplays {
+
+    private static final Logger LOGGER = Logger.getLogger(HostDisplays.class.getName());
+
+    /**
+     * Lock files held by this JVM, by path; closing the channel releases the lock.
+     */
+    private static final Map<String,FileChannel> held = new HashMap<String,FileChannel>();
+
+    private final DisplayAllocator allocator;
+    @CheckForNull
+    private final VirtualChannel channel;
+    @CheckForNull
+    private final String lockDirectory;
+
+    /**
+     * @param lockDirectory directory on the host shared by all agents, or null to rely on the allocator alone
+     */
+    HostDisplays(DisplayAllocator allocator, @CheckForNull VirtualChannel channel, @CheckForNull String lockDirectory) {
+        this.allocator = allocator;
+        this.channel = channel;
+        this.lockDirectory = channel != null ? lockDirectory : null;
+    }
+
+    int allocate(int minDisplayNumber, int maxDisplayNumber, @CheckForNull String holder) throws IOException, InterruptedException {
+        if (lockDirectory == null) {
+            return allocator.allocate(minDisplayNumber, maxDisplayNumber, holder);
+        }
+        DisplayAllocator.Snapshot state = allocator.getSnapshot();
+        Set<Integer> unavailable = new HashSet<Integer>(state.getAllocated());
+        unavailable.addAll(state.getBlacklisted());
+        int displayNumber = channel.call(new Acquire(lockDirectory, minDisplayNumber, maxDisplayNumber, unavailable));
+        if (displayNumber < 0 && !state.getBlacklisted().isEmpty()) {
+            // Like the allocator, give blacklisted displays another chance rather than failing.
+            displayNumber = channel.call(new Acquire(lockDirectory, minDisplayNumber, maxDisplayNumber, state.getAllocated()));
+        }
+        if (displayNumber < 0) {
+            throw new RuntimeException("All available display numbers are allocated, blacklisted or used by other agents on the host" +
+                    "\nallocated: " + state.getAllocated() + "\nblacklisted: " + state.getBlacklisted());
+        }
+        allocator.reserve(displayNumber, holder);
+        return displayNumber;
+    }
+
+    void free(int displayNumber) {
+        allocator.free(displayNumber);
+        release(displayNumber);
+    }
+
+    void blacklist(int displayNumber) {
+        allocator.blacklist(displayNumber);
+        // Other agents will find the lock file of the X server, if it is stuck.
+        release(displayNumber);
+    }
+
+    private void release(int displayNumber) {
+        if (lockDirectory == null) {
+            return;
+        }
+        try {
+            channel.call(new Release(lockDirectory, displayNumber));
+        } catch (IOException | InterruptedException x) {
+            LOGGER.log(Level.WARNING, "Could not release display :" + displayNumber, x);
+        }
+    }
+
+    private static File lockFile(String lockDirectory, int displayNumber) {
+        return new File(lockDirectory, "display-" + displayNumber + ".lock");
+    }
+
+    /**
+     * Whether some agent on this host, this one included, holds the lock of a display.
+     * To be called on the agent.
+     */
+    static boolean isLocked(String lockDirectory, int displayNumber) {
+        File file = lockFile(lockDirectory, displayNumber);
+        synchronized (held) {
+            if (held.containsKey(file.getPath())) {
+                return true;
+            }
+            if (!file.exists()) {
+                return false;
+            }
+            try (FileChannel lockChannel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                FileLock lock = lockChannel.tryLock();
+                if (lock == null) {
+                    return true;
+                }
+                lock.release();
+                return false;
+            } catch (IOException x) {
+                LOGGER.log(Level.FINE, "Cannot check " + file + "; assuming it is locked", x);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Locks a free display number on the host, or returns -1 if there is none.
+     */
+    static final class Acquire extends MasterToSlaveCallable<Integer,IOException> {
+
+        private static final long serialVersionUID = 1;
+
+        private final String lockDirectory;
+        private final int minDisplayNumber;
+        private final int maxDisplayNumber;
+        private final Set<Integer> unavailable;
+
+        Acquire(String lockDirectory, int minDisplayNumber, int maxDisplayNumber, Set<Integer> unavailable) {
+            this.lockDirectory = lockDirectory;
+            this.minDisplayNumber = minDisplayNumber;
+            this.maxDisplayNumber = maxDisplayNumber;
+            this.unavailable = new HashSet<Integer>(unavailable);
+        }
+
+        @Override
+        public Integer call() throws IOException {
+            File dir = new File(lockDirectory);
+            if (!dir.isDirectory()) {
+                if (!dir.mkdirs() && !dir.isDirectory()) {
+                    throw new IOException("Could not create " + dir);
+                }
+                // Agents on the host may run as different users.
+                dir.setReadable(true, false);
+                dir.setWritable(true, false);
+                dir.setExecutable(true, false);
+            }
+            List<Integer> numbers = new ArrayList<Integer>();
+            for (int n = minDisplayNumber; n <= maxDisplayNumber; n++) {
+                if (!unavailable.contains(n)) {
+                    numbers.add(n);
+                }
+            }
+            Collections.shuffle(numbers, DisplayAllocator.RANDOM);
+            synchronized (held) {
+                for (int n : numbers) {
+                    if (new File("/tmp/.X" + n + "-lock").exists()) {
+                        continue; // some X server, maybe not started by Jenkins at all
+                    }
+                    File file = lockFile(lockDirectory, n);
+                    if (held.containsKey(file.getPath())) {
+                        continue;
+                    }
+                    FileChannel lockChannel;
+                    try {
+                        lockChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                    } catch (IOException x) {
+                        LOGGER.log(Level.FINE, "Cannot open " + file, x);
+                        continue;
+                    }
+                    file.setReadable(true, false);
+                    file.setWritable(true, false);
+                    FileLock lock = lockChannel.tryLock();
+                    if (lock == null) {
+                        lockChannel.close(); // another agent has it
+                        continue;
+                    }
+                    held.put(file.getPath(), lockChannel);
+                    return n;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Locks a given display number again, such as after a restart of the agent;
+     * returns false if another agent on the host has it.
+     */
+    static final class Reacquire extends MasterToSlaveCallable<Boolean,IOException> {
+
+        private static final long serialVersionUID = 1;
+
+        private final String lockDirectory;
+        private final int displayNumber;
+
+        Reacquire(String lockDirectory, int displayNumber) {
+            this.lockDirectory = lockDirectory;
+            this.displayNumber = displayNumber;
+        }
+
+        @Override
+        public Boolean call() throws IOException {
+            File file = lockFile(lockDirectory, displayNumber);
+            synchronized (held) {
+                if (held.containsKey(file.getPath())) {
+                    return true; // this agent kept it
+                }
+                FileChannel lockChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                FileLock lock = lockChannel.tryLock();
+                if (lock == null) {
+                    lockChannel.close();
+                    return false;
+                }
+                held.put(file.getPath(), lockChannel);
+                return true;
+            }
+        }
+    }
+
+    static final class Release extends MasterToSlaveCallable<Void,IOException> {
+
+        private static final long serialVersionUID = 1;
+
+        private final String lockDirectory;
+        private final int displayNumber;
+
+        Release(String lockDirectory, int displayNumber) {
+            this.lockDirectory = lockDirectory;
+            this.displayNumber = displayNumber;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            FileChannel lockChannel;
+            synchronized (held) {
+                lockChannel = held.remove(lockFile(lockDirectory, displayNumber).getPath());
+            }
+            if (lockChannel != null) {
+                lockChannel.close();
+            }
+            return null;
+        }
+    }
+}
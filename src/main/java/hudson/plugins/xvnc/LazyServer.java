@@ -0,0 +1,312 @@
+package hudson.plugins.xvnc;
+
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.security.MasterToSlaveCallable;
+
+/**
+ * Defers starting an X server until an X client first connects to its display.
+ * Until then only the TCP port of the display is listened on, which costs next to nothing.
+ * The first connection starts the server and is handed over to it once it accepts connections;
+ * clients connecting while the server starts are refused.
+ * <p>
+ * The Unix domain socket of the display cannot be listened on as agents may run Java 8,
+ * so clients reach the display over TCP, as <code>localhost:n</code>, and the server is started with TCP enabled.
+ * X servers cannot restrict their TCP port to the loopback interface, so the display is then only protected
+ * by host based access control and the Xauthority cookie, if any: a server started in the foreground is given a new cookie,
+ * written to the Xauthority file of the build, while <code>vncserver</code> writes its own.
+ */
+final class LazyServer implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(LazyServer.class.getName());
+
+    private static final int X11_TCP_PORT = 6000;
+
+    private static final int FAMILY_WILD = 0xFFFF;
+    private static final String MIT_MAGIC_COOKIE = "MIT-MAGIC-COOKIE-1";
+
+    /**
+     * Servers waiting for or serving their first client, by id.
+     */
+    private static final Map<String,LazyServer> servers = new ConcurrentHashMap<String,LazyServer>();
+
+    private final int displayNumber;
+    private final String[] cmds;
+    private final Map<String,String> envs;
+    private final File pwd;
+    private final TaskListener listener;
+    private final ServerSocket serverSocket;
+    private Process process;
+    private volatile boolean stopped;
+
+    private LazyServer(int displayNumber, String[] cmds, Map<String,String> envs, File pwd, TaskListener listener) throws IOException {
+        this.displayNumber = displayNumber;
+        this.cmds = cmds;
+        this.envs = envs;
+        this.pwd = pwd;
+        this.listener = listener;
+        serverSocket = new ServerSocket();
+        try {
+            serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), X11_TCP_PORT + displayNumber));
+        } catch (IOException x) {
+            serverSocket.close();
+            throw new IOException("Could not listen on display :" + displayNumber, x);
+        }
+    }
+
+    /**
+     * Makes a server command listen on TCP, which <code>-nolisten tcp</code> in the default command line prevents.
+     */
+    static String[] withTcp(String[] cmds) {
+        List<String> result = new ArrayList<String>();
+        for (int i = 0; i < cmds.length; i++) {
+            if (cmds[i].equals("-nolisten") && i + 1 < cmds.length && cmds[i + 1].equals("tcp")) {
+                i++;
+            } else {
+                result.add(cmds[i]);
+            }
+        }
+        result.add("-listen");
+        result.add("tcp");
+        return result.toArray(new String[0]);
+    }
+
+    /**
+     * Writes a new cookie to an Xauthority file, for the display at any address, and makes the server command read it.
+     */
+    static String[] withCookie(String[] cmds, File xauthority, int displayNumber) throws IOException {
+        byte[] cookie = new byte[16];
+        new SecureRandom().nextBytes(cookie);
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(xauthority))) {
+            out.writeShort(FAMILY_WILD);
+            writeField(out, new byte[0]);
+            writeField(out, String.valueOf(displayNumber).getBytes(StandardCharsets.US_ASCII));
+            writeField(out, MIT_MAGIC_COOKIE.getBytes(StandardCharsets.US_ASCII));
+            writeField(out, cookie);
+        }
+        String[] result = Arrays.copyOf(cmds, cmds.length + 2);
+        result[cmds.length] = "-auth";
+        result[cmds.length + 1] = xauthority.getAbsolutePath();
+        return result;
+    }
+
+    private static void writeField(DataOutputStream out, byte[] field) throws IOException {
+        out.writeShort(field.length);
+        out.write(field);
+    }
+
+    @Override
+    public void run() {
+        Socket client;
+        try {
+            client = serverSocket.accept();
+        } catch (IOException x) {
+            if (!stopped) {
+                LOGGER.log(Level.WARNING, "Stopped listening on display :" + displayNumber, x);
+            }
+            return;
+        }
+        try {
+            serverSocket.close(); // so that the server can take the port over
+            start();
+            Socket server = connect();
+            pump(client, server);
+            pump(server, client);
+        } catch (Exception x) {
+            listener.error("Could not start the X server on display :" + displayNumber + ": " + x);
+            String log = envs.get(ServerLog.ENV);
+            if (log != null) {
+                try {
+                    ServerLog.printTail(ServerLog.tail(new File(log), ServerLog.TAIL_BYTES), listener);
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, null, e);
+                }
+            }
+            close(client);
+        }
+    }
+
+    private synchronized void start() throws IOException {
+        if (stopped) {
+            throw new IOException("Build is over");
+        }
+        listener.getLogger().println(Messages.Xvnc_STARTING_ON_DEMAND(displayNumber));
+        String log = envs.get(ServerLog.ENV);
+        if (log != null && !new File(log).delete()) {
+            LOGGER.log(Level.FINE, "No previous output in {0}", log);
+        }
+        ProcessBuilder pb = new ProcessBuilder(cmds).directory(pwd).redirectErrorStream(true)
+                .redirectOutput(log != null ? ProcessBuilder.Redirect.appendTo(new File(log)) : ProcessBuilder.Redirect.INHERIT);
+        pb.environment().putAll(envs);
+        process = pb.start();
+        process.getOutputStream().close();
+    }
+
+    /**
+     * Waits for the server to accept connections.
+     * A <code>vncserver</code> wrapper exits once the server runs in the background, so only a failed exit means giving up.
+     */
+    private Socket connect() throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(CommandRunner.START_TIMEOUT);
+        while (true) {
+            try {
+                Socket socket = new Socket(InetAddress.getLoopbackAddress(), X11_TCP_PORT + displayNumber);
+                socket.setTcpNoDelay(true);
+                return socket;
+            } catch (ConnectException x) {
+                if (!process.isAlive() && process.exitValue() != 0) {
+                    throw new IOException("'" + String.join(" ", cmds) + "' exited with code " + process.exitValue());
+                }
+                if (stopped || System.nanoTime() > deadline) {
+                    throw x;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    /**
+     * Copies everything from one socket to the other in the background.
+     */
+    private void pump(final Socket from, final Socket to) {
+        Thread t = new Thread("Xvnc connection to display :" + displayNumber) {
+            @Override public void run() {
+                try {
+                    InputStream in = from.getInputStream();
+                    OutputStream out = to.getOutputStream();
+                    byte[] buf = new byte[8192];
+                    int len;
+                    while ((len = in.read(buf)) >= 0) {
+                        out.write(buf, 0, len);
+                    }
+                    to.shutdownOutput();
+                } catch (IOException x) {
+                    close(from);
+                    close(to);
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException x) {
+            LOGGER.log(Level.FINE, null, x);
+        }
+    }
+
+    /**
+     * Stops listening and stops a server started in the foreground.
+     * @return whether the server was ever started
+     */
+    private synchronized boolean stop() throws InterruptedException {
+        stopped = true;
+        try {
+            serverSocket.close();
+        } catch (IOException x) {
+            LOGGER.log(Level.FINE, null, x);
+        }
+        if (process == null) {
+            return false;
+        }
+        if (process.isAlive()) {
+            process.destroy();
+            if (!process.waitFor(CommandRunner.STOP_TIMEOUT, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Starts listening on a display, run on the workspace which becomes the working directory of the server.
+     * Returns the id to pass to {@link Stop}.
+     */
+    static final class Listen extends MasterToSlaveFileCallable<String> {
+
+        private static final long serialVersionUID = 1;
+
+        private final int displayNumber;
+        private final String[] cmds;
+        private final Map<String,String> envs;
+        /**
+         * Where to write a cookie for the server, if it is to be given one.
+         */
+        @CheckForNull
+        private final String xauthorityPath;
+        private final TaskListener listener;
+
+        Listen(int displayNumber, String[] cmds, Map<String,String> envs, @CheckForNull String xauthorityPath, TaskListener listener) {
+            this.displayNumber = displayNumber;
+            this.cmds = cmds;
+            this.envs = envs;
+            this.xauthorityPath = xauthorityPath;
+            this.listener = listener;
+        }
+
+        @Override
+        public String invoke(File f, VirtualChannel channel) throws IOException {
+            String[] serverCmds = withTcp(cmds);
+            if (xauthorityPath != null) {
+                serverCmds = withCookie(serverCmds, new File(xauthorityPath), displayNumber);
+            }
+            LazyServer server = new LazyServer(displayNumber, serverCmds, envs, f, listener);
+            String id = UUID.randomUUID().toString();
+            servers.put(id, server);
+            Thread t = new Thread(server, "Xvnc waiting for a client on display :" + displayNumber);
+            t.setDaemon(true);
+            t.start();
+            return id;
+        }
+    }
+
+    /**
+     * Stops listening on a display; returns whether a client caused the server to be started.
+     */
+    static final class Stop extends MasterToSlaveCallable<Boolean,InterruptedException> {
+
+        private static final long serialVersionUID = 1;
+
+        private final String id;
+
+        Stop(String id) {
+            this.id = id;
+        }
+
+        @Override
+        public Boolean call() throws InterruptedException {
+            LazyServer server = servers.remove(id);
+            if (server == null) {
+                return true; // the agent was restarted; the server may be running on its own
+            }
+            return server.stop();
+        }
+    }
+}
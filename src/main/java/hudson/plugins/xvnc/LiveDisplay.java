@@ -0,0 +1,187 @@
+package hudson.plugins.xvnc;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.security.MasterToSlaveCallable;
+
+/**
+ * Follows a display from the agent and streams its updates to the controller, for {@link LiveDisplayHub}.
+ * A single RFB connection serves all viewers of a display.
+ * Updates are requested no faster than the agent connection budget allows, whatever the viewers can take,
+ * so that a busy screen costs at most {@link #UPSTREAM_BYTES_PER_SECOND} on the channel.
+ * <p>
+ * The stream is a sequence of messages, each prefixed by its u32 length; all numbers big endian:
+ * <pre>
+ * resize:    u8 0, u16 width, u16 height
+ * rectangle: u8 1, u16 x, u16 y, u16 width, u16 height, pixels as delivered by {@link RfbClient}
+ * </pre>
+ * Messages are passed to browsers unchanged.
+ */
+final class LiveDisplay implements Runnable, RfbClient.Listener {
+
+    private static final Logger LOGGER = Logger.getLogger(LiveDisplay.class.getName());
+
+    static final int RESIZE = 0;
+    static final int RECTANGLE = 1;
+
+    /**
+     * Minimum milliseconds between two updates sent to viewers.
+     */
+    static long FRAME_INTERVAL = Long.getLong(LiveDisplay.class.getName() + ".frameInterval", 100);
+
+    /**
+     * Bandwidth the updates of a display may use on the agent connection, in bytes per second.
+     */
+    static long UPSTREAM_BYTES_PER_SECOND = Long.getLong(LiveDisplay.class.getName() + ".upstreamBytesPerSecond", 4 * 1024 * 1024);
+
+    private static final long CONNECT_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+
+    /**
+     * Displays being followed in this JVM, by identifier.
+     */
+    private static final Map<String,LiveDisplay> displays = new ConcurrentHashMap<String,LiveDisplay>();
+
+    private final int displayNumber;
+    private final long frameInterval;
+    private final long bytesPerSecond;
+    private final DataOutputStream out;
+    private final Thread thread;
+    private volatile RfbClient client;
+    private volatile boolean stopping;
+
+    private LiveDisplay(int displayNumber, long frameInterval, long bytesPerSecond, OutputStream sink) {
+        this.displayNumber = displayNumber;
+        this.frameInterval = frameInterval;
+        this.bytesPerSecond = bytesPerSecond;
+        this.out = new DataOutputStream(new BufferedOutputStream(sink, 64 * 1024));
+        this.thread = new Thread(this, "Xvnc live display of :" + displayNumber);
+        thread.setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        try {
+            client = RfbClient.connect("localhost", 5900 + displayNumber, CONNECT_TIMEOUT);
+            if (!stopping) {
+                client.run(this, frameInterval, bytesPerSecond);
+            }
+        } catch (IOException x) {
+            if (client == null) {
+                // Such as a server requiring a password.
+                LOGGER.log(Level.WARNING, "Could not follow display :" + displayNumber, x);
+            } else if (!stopping) {
+                LOGGER.log(Level.FINE, "Stopped following display :" + displayNumber, x);
+            }
+        } catch (InterruptedException x) {
+            // stopped
+        } finally {
+            RfbClient c = client;
+            if (c != null) {
+                try {
+                    c.close();
+                } catch (IOException x) {
+                    LOGGER.log(Level.FINE, null, x);
+                }
+            }
+            displays.values().remove(this);
+            try {
+                out.close(); // tells the controller that the stream ended
+            } catch (IOException x) {
+                LOGGER.log(Level.FINE, null, x);
+            }
+        }
+    }
+
+    @Override
+    public void resized(int width, int height) throws IOException {
+        out.writeInt(5);
+        out.writeByte(RESIZE);
+        out.writeShort(width);
+        out.writeShort(height);
+    }
+
+    @Override
+    public void rectangle(int x, int y, int width, int height, byte[] pixels) throws IOException {
+        out.writeInt(9 + pixels.length);
+        out.writeByte(RECTANGLE);
+        out.writeShort(x);
+        out.writeShort(y);
+        out.writeShort(width);
+        out.writeShort(height);
+        out.write(pixels);
+    }
+
+    @Override
+    public void updated() throws IOException {
+        out.flush();
+    }
+
+    private void stop() {
+        stopping = true;
+        RfbClient c = client;
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException x) {
+                LOGGER.log(Level.FINE, null, x);
+            }
+        }
+        thread.interrupt();
+    }
+
+    /**
+     * Starts following a display, writing to a stream exported by the controller; returns an identifier to pass to {@link Stop}.
+     */
+    static final class Start extends MasterToSlaveCallable<String,IOException> {
+
+        private static final long serialVersionUID = 1;
+
+        private final int displayNumber;
+        private final OutputStream sink;
+        // Settings of the controller.
+        private final long frameInterval = FRAME_INTERVAL;
+        private final long bytesPerSecond = UPSTREAM_BYTES_PER_SECOND;
+
+        Start(int displayNumber, OutputStream sink) {
+            this.displayNumber = displayNumber;
+            this.sink = sink;
+        }
+
+        @Override
+        public String call() throws IOException {
+            LiveDisplay display = new LiveDisplay(displayNumber, frameInterval, bytesPerSecond, sink);
+            String id = UUID.randomUUID().toString();
+            displays.put(id, display);
+            display.thread.start();
+            return id;
+        }
+    }
+
+    static final class Stop extends MasterToSlaveCallable<Void,IOException> {
+
+        private static final long serialVersionUID = 1;
+
+        private final String id;
+
+        Stop(String id) {
+            this.id = id;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            LiveDisplay display = displays.remove(id);
+            if (display != null) {
+                display.stop();
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package hudson.plugins.xvnc;
+
+import hudson.model.Item;
+import hudson.model.Run;
+import hudson.security.Permission;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import jenkins.model.Jenkins;
+import jenkins.model.RunAction2;
+import jenkins.websocket.WebSockets;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.StaplerRequest;
+
+/**
+ * Shows the display of a running build in the browser.
+ * Viewing requires the permission to see the workspace, as the screen may show as much,
+ * and only pages of Jenkins itself may open the WebSocket, as browsers send cookies along to any site.
+ */
+public final class LiveDisplayAction implements RunAction2 {
+
+    private static final Logger LOGGER = Logger.getLogger(LiveDisplayAction.class.getName());
+
+    private final String nodeName;
+    private final int displayNumber;
+    private transient Run<?,?> run;
+    private transient LiveDisplayHub hub;
+    private transient volatile boolean closed;
+
+    LiveDisplayAction(String nodeName, int displayNumber) {
+        this.nodeName = nodeName;
+        this.displayNumber = displayNumber;
+    }
+
+    @Override
+    public void onAttached(Run<?,?> r) {
+        run = r;
+    }
+
+    @Override
+    public void onLoad(Run<?,?> r) {
+        run = r;
+    }
+
+    public Run<?,?> getRun() {
+        return run;
+    }
+
+    public int getDisplayNumber() {
+        return displayNumber;
+    }
+
+    public Permission getRequiredPermission() {
+        return Item.WORKSPACE;
+    }
+
+    private boolean isAvailable() {
+        return !closed && run != null && run.isBuilding() && WebSockets.isSupported();
+    }
+
+    @Override
+    public String getIconFileName() {
+        return isAvailable() && run.getParent().hasPermission(Item.WORKSPACE) ? "monitor.png" : null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return Messages.Xvnc_LIVE_DISPLAY();
+    }
+
+    @Override
+    public String getUrlName() {
+        return "liveDisplay";
+    }
+
+    public HttpResponse doWs(StaplerRequest req) {
+        run.getParent().checkPermission(Item.WORKSPACE);
+        Jenkins jenkins = Jenkins.get();
+        String rootUrl = jenkins.getRootUrl();
+        String origin = req.getHeader("Origin");
+        if (!sameOrigin(origin, rootUrl != null ? rootUrl : jenkins.getRootUrlFromRequest())) {
+            LOGGER.log(Level.FINE, "Rejecting live display of {0} from origin {1}", new Object[] {run, origin});
+            return HttpResponses.forbidden();
+        }
+        if (!isAvailable()) {
+            return HttpResponses.notFound();
+        }
+        return WebSockets.upgrade(hub().new Viewer());
+    }
+
+    /**
+     * Whether the <code>Origin</code> header of a request names the site Jenkins runs on.
+     */
+    static boolean sameOrigin(@CheckForNull String origin, String rootUrl) {
+        if (origin == null) {
+            return false;
+        }
+        try {
+            URI root = new URI(rootUrl);
+            URI actual = new URI(origin);
+            return root.getScheme() != null && root.getScheme().equalsIgnoreCase(actual.getScheme())
+                    && root.getHost() != null && root.getHost().equalsIgnoreCase(actual.getHost())
+                    && port(root) == port(actual);
+        } catch (URISyntaxException x) {
+            return false;
+        }
+    }
+
+    private static int port(URI uri) {
+        if (uri.getPort() != -1) {
+            return uri.getPort();
+        }
+        return "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+    }
+
+    private synchronized LiveDisplayHub hub() {
+        if (hub == null) {
+            hub = new LiveDisplayHub(nodeName, displayNumber);
+        }
+        return hub;
+    }
+
+    /**
+     * Disconnects all viewers as the display goes away.
+     */
+    synchronized void close() {
+        closed = true;
+        if (hub != null) {
+            hub.stop();
+            hub = null;
+        }
+    }
+}
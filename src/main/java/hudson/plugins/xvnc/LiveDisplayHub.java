@@ -0,0 +1,375 @@
+package hudson.plugins.xvnc;
+
+import hudson.model.Node;
+import hudson.remoting.RemoteOutputStream;
+import hudson.remoting.VirtualChannel;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import jenkins.model.Jenkins;
+import jenkins.websocket.WebSocketSession;
+import net.jcip.annotations.GuardedBy;
+
+/**
+ * Fans the updates of one display out to the browsers viewing it.
+ * The display is followed by a single {@link LiveDisplay} on the agent while anybody is watching,
+ * whose messages are forwarded as they are: every viewer is sent a read-only view of the same buffer.
+ * <p>
+ * Each viewer has a bandwidth budget. Updates a viewer has no budget for are dropped,
+ * and once it has budget again it is sent the whole screen, kept here for that purpose and for viewers joining.
+ * Messages are received once into an array of their own and never copied for sending;
+ * the screen kept here is only brought up to date from them when somebody needs it.
+ */
+final class LiveDisplayHub extends OutputStream {
+
+    private static final Logger LOGGER = Logger.getLogger(LiveDisplayHub.class.getName());
+
+    /**
+     * Bandwidth each viewer may use, in bytes per second.
+     */
+    static long VIEWER_BYTES_PER_SECOND = Long.getLong(LiveDisplayHub.class.getName() + ".viewerBytesPerSecond", 4 * 1024 * 1024);
+
+    /**
+     * Messages being sent to a viewer beyond which it is considered too slow for more.
+     */
+    static final int MAX_IN_FLIGHT = 8;
+
+    /**
+     * Where the updates of the display come from.
+     */
+    interface Upstream {
+        /**
+         * Starts writing the updates of a display to the hub.
+         * @return an identifier to pass to {@link #stop}
+         */
+        String start(int displayNumber, OutputStream sink) throws IOException, InterruptedException;
+
+        void stop(String id) throws IOException, InterruptedException;
+    }
+
+    private final int displayNumber;
+    private final Upstream upstream;
+    private final Set<Viewer> viewers = new CopyOnWriteArraySet<Viewer>();
+
+    @GuardedBy("this")
+    private @CheckForNull String upstreamId;
+
+    // Parsing of the stream written by LiveDisplay; only ever written to by one thread at a time.
+    private final byte[] header = new byte[4];
+    private int headerFill;
+    private byte[] message;
+    private int messageFill;
+
+    @GuardedBy("this")
+    private byte[] framebuffer;
+    /**
+     * Rectangles received since {@link #framebuffer} was last brought up to date, in order.
+     */
+    @GuardedBy("this")
+    private final Deque<byte[]> pending = new ArrayDeque<byte[]>();
+    @GuardedBy("this")
+    private long pendingBytes;
+    @GuardedBy("this")
+    private int width;
+    @GuardedBy("this")
+    private int height;
+    /**
+     * {@link #framebuffer} as a message, until the next change.
+     */
+    @GuardedBy("this")
+    private ByteBuffer fullFrame;
+
+    LiveDisplayHub(String nodeName, int displayNumber) {
+        this(displayNumber, new AgentUpstream(nodeName));
+    }
+
+    LiveDisplayHub(int displayNumber, Upstream upstream) {
+        this.displayNumber = displayNumber;
+        this.upstream = upstream;
+    }
+
+    /**
+     * Follows the display with a {@link LiveDisplay} on the agent.
+     */
+    private static final class AgentUpstream implements Upstream {
+
+        private final String nodeName;
+
+        AgentUpstream(String nodeName) {
+            this.nodeName = nodeName;
+        }
+
+        private VirtualChannel channel() throws IOException {
+            Jenkins jenkins = Jenkins.getActiveInstance();
+            Node node = nodeName.isEmpty() ? jenkins : jenkins.getNode(nodeName);
+            VirtualChannel channel = node != null ? node.getChannel() : null;
+            if (channel == null) {
+                throw new IOException("Node " + nodeName + " is offline");
+            }
+            return channel;
+        }
+
+        @Override
+        public String start(int displayNumber, OutputStream sink) throws IOException, InterruptedException {
+            return channel().call(new LiveDisplay.Start(displayNumber, new RemoteOutputStream(sink)));
+        }
+
+        @Override
+        public void stop(String id) throws IOException, InterruptedException {
+            channel().call(new LiveDisplay.Stop(id));
+        }
+    }
+
+    void add(Viewer viewer) throws IOException, InterruptedException {
+        viewers.add(viewer);
+        synchronized (this) {
+            if (upstreamId == null) {
+                upstreamId = upstream.start(displayNumber, this);
+            } else if (framebuffer != null) {
+                viewer.offer(resizeMessage(), true);
+                viewer.offer(fullFrame(), true);
+            }
+        }
+    }
+
+    void remove(Viewer viewer) {
+        viewers.remove(viewer);
+        synchronized (this) {
+            if (viewers.isEmpty()) {
+                stopUpstream();
+            }
+        }
+    }
+
+    /**
+     * Disconnects all viewers, as the display goes away.
+     */
+    synchronized void stop() {
+        stopUpstream();
+        for (Viewer viewer : viewers) {
+            viewer.disconnect();
+        }
+        viewers.clear();
+    }
+
+    @GuardedBy("this")
+    private void stopUpstream() {
+        if (upstreamId == null) {
+            return;
+        }
+        try {
+            upstream.stop(upstreamId);
+        } catch (IOException | InterruptedException x) {
+            LOGGER.log(Level.FINE, "Could not stop following display :" + displayNumber, x);
+        }
+        upstreamId = null;
+        forgetScreen();
+    }
+
+    @GuardedBy("this")
+    private void forgetScreen() {
+        framebuffer = null;
+        fullFrame = null;
+        pending.clear();
+        pendingBytes = 0;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n;
+            if (message == null) {
+                n = Math.min(len, 4 - headerFill);
+                System.arraycopy(b, off, header, headerFill, n);
+                headerFill += n;
+                if (headerFill == 4) {
+                    message = new byte[ByteBuffer.wrap(header).getInt()];
+                    messageFill = 0;
+                    headerFill = 0;
+                }
+            } else {
+                n = Math.min(len, message.length - messageFill);
+                System.arraycopy(b, off, message, messageFill, n);
+                messageFill += n;
+            }
+            if (message != null && messageFill == message.length) {
+                byte[] m = message;
+                message = null;
+                dispatch(m);
+            }
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * The agent stopped following the display.
+     */
+    @Override
+    public synchronized void close() {
+        upstreamId = null;
+        forgetScreen();
+    }
+
+    private synchronized void dispatch(byte[] m) {
+        ByteBuffer data = ByteBuffer.wrap(m);
+        boolean resize = m[0] == LiveDisplay.RESIZE;
+        if (resize) {
+            forgetScreen();
+            width = data.getShort(1) & 0xFFFF;
+            height = data.getShort(3) & 0xFFFF;
+            framebuffer = new byte[width * height * RfbClient.BYTES_PER_PIXEL];
+        } else if (framebuffer != null) {
+            if (data.getShort(1) == 0 && data.getShort(3) == 0 && (data.getShort(5) & 0xFFFF) >= width && (data.getShort(7) & 0xFFFF) >= height) {
+                // Covers the whole screen, so whatever came before is of no use.
+                pending.clear();
+                pendingBytes = 0;
+            }
+            pending.add(m);
+            pendingBytes += m.length;
+            if (pendingBytes > framebuffer.length) {
+                // Bounds the memory held on to.
+                applyPending();
+            }
+            fullFrame = null;
+        }
+        for (Viewer viewer : viewers) {
+            viewer.offer(data.asReadOnlyBuffer(), resize);
+        }
+    }
+
+    @GuardedBy("this")
+    private void applyPending() {
+        for (byte[] m : pending) {
+            ByteBuffer data = ByteBuffer.wrap(m);
+            int x = data.getShort(1) & 0xFFFF;
+            int y = data.getShort(3) & 0xFFFF;
+            int w = data.getShort(5) & 0xFFFF;
+            int h = data.getShort(7) & 0xFFFF;
+            int rowBytes = w * RfbClient.BYTES_PER_PIXEL;
+            for (int row = 0; row < h && y + row < height && x < width; row++) {
+                System.arraycopy(m, 9 + row * rowBytes, framebuffer, ((y + row) * width + x) * RfbClient.BYTES_PER_PIXEL,
+                        Math.min(rowBytes, (width - x) * RfbClient.BYTES_PER_PIXEL));
+            }
+        }
+        pending.clear();
+        pendingBytes = 0;
+    }
+
+    @GuardedBy("this")
+    private ByteBuffer resizeMessage() {
+        ByteBuffer m = ByteBuffer.allocate(5);
+        m.put((byte) LiveDisplay.RESIZE).putShort((short) width).putShort((short) height);
+        m.flip();
+        return m;
+    }
+
+    @GuardedBy("this")
+    private ByteBuffer fullFrame() {
+        if (fullFrame == null) {
+            applyPending();
+            ByteBuffer m = ByteBuffer.allocate(9 + framebuffer.length);
+            m.put((byte) LiveDisplay.RECTANGLE).putShort((short) 0).putShort((short) 0).putShort((short) width).putShort((short) height);
+            m.put(framebuffer);
+            m.flip();
+            fullFrame = m;
+        }
+        return fullFrame.asReadOnlyBuffer();
+    }
+
+    /**
+     * A browser viewing the display.
+     */
+    class Viewer extends WebSocketSession {
+
+        private final double bytesPerNano = VIEWER_BYTES_PER_SECOND / (double) TimeUnit.SECONDS.toNanos(1);
+        private double tokens = VIEWER_BYTES_PER_SECOND;
+        private long refilled = System.nanoTime();
+        private final Deque<Future<Void>> inFlight = new ArrayDeque<Future<Void>>();
+        /**
+         * Whether updates were dropped, so that the viewer needs the whole screen again.
+         */
+        private boolean stale;
+
+        @Override
+        protected void opened() {
+            try {
+                add(this);
+            } catch (IOException | InterruptedException x) {
+                LOGGER.log(Level.FINE, "Could not follow display :" + displayNumber, x);
+                close();
+            }
+        }
+
+        @Override
+        protected void closed(int statusCode, String reason) {
+            remove(this);
+        }
+
+        @Override
+        protected void error(Throwable cause) {
+            LOGGER.log(Level.FINE, "Viewer of display :" + displayNumber + " failed", cause);
+            remove(this);
+        }
+
+        void disconnect() {
+            close();
+        }
+
+        Future<Void> send(ByteBuffer data) {
+            return sendBinary(data);
+        }
+
+        /**
+         * Sends a message if the budget allows; essential messages, which are small, are always sent.
+         * Called with the hub locked.
+         */
+        void offer(ByteBuffer data, boolean essential) {
+            if (stale && !essential) {
+                ByteBuffer frame = fullFrame();
+                if (take(frame.remaining())) {
+                    stale = false;
+                    inFlight.add(send(frame));
+                }
+                return;
+            }
+            if (essential || take(data.remaining())) {
+                inFlight.add(send(data));
+            } else {
+                stale = true;
+            }
+        }
+
+        private boolean take(int bytes) {
+            while (!inFlight.isEmpty() && inFlight.peekFirst().isDone()) {
+                inFlight.removeFirst();
+            }
+            if (inFlight.size() >= MAX_IN_FLIGHT) {
+                return false;
+            }
+            long now = System.nanoTime();
+            tokens = Math.min(VIEWER_BYTES_PER_SECOND, tokens + (now - refilled) * bytesPerNano);
+            refilled = now;
+            // A message larger than the whole budget goes out whenever the budget is full, leaving a debt.
+            if (tokens >= bytes || tokens >= VIEWER_BYTES_PER_SECOND) {
+                tokens -= bytes;
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package hudson.plugins.xvnc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal view-only RFB (VNC) client, as needed to follow the screen of a local VNC server.
+ * Only the <code>None</code> security type and the <code>Raw</code> encoding are supported;
+ * pixels are always requested as 32 bit little endian true colour, i.e. bytes B, G, R, unused.
+ * Updates are requested incrementally, so an idle screen causes no traffic at all.
+ */
+final class RfbClient implements Closeable {
+
+    static final int BYTES_PER_PIXEL = 4;
+
+    private static final int ENCODING_RAW = 0;
+    private static final int ENCODING_DESKTOP_SIZE = -223;
+
+    /**
+     * Receives the framebuffer contents.
+     */
+    interface Listener {
+        /**
+         * Called before any rectangle, and again whenever the server changes the screen size.
+         */
+        void resized(int width, int height) throws IOException;
+
+        /**
+         * Called for every changed rectangle; the pixel array is not reused by the client.
+         */
+        void rectangle(int x, int y, int width, int height, byte[] pixels) throws IOException;
+
+        /**
+         * Called once all rectangles of an update have been delivered.
+         */
+        void updated() throws IOException;
+    }
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private volatile boolean closed;
+    private int width;
+    private int height;
+
+    private RfbClient(Socket socket) throws IOException {
+        this.socket = socket;
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    /**
+     * Connects to a VNC server and performs the handshake,
+     * retrying for a while in case the server is still starting.
+     */
+    static RfbClient connect(String host, int port, long timeoutMillis) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(host, port));
+                socket.setTcpNoDelay(true);
+                RfbClient client = new RfbClient(socket);
+                client.handshake();
+                return client;
+            } catch (ConnectException x) {
+                socket.close();
+                if (System.currentTimeMillis() > deadline) {
+                    throw x;
+                }
+                Thread.sleep(250);
+            } catch (IOException x) {
+                socket.close();
+                throw x;
+            }
+        }
+    }
+
+    private void handshake() throws IOException {
+        byte[] version = new byte[12];
+        in.readFully(version);
+        String serverVersion = new String(version, StandardCharsets.US_ASCII);
+        if (!serverVersion.matches("RFB \\d{3}\\.\\d{3}\n")) {
+            throw new IOException("Not an RFB server: " + serverVersion.trim());
+        }
+        int major = Integer.parseInt(serverVersion.substring(4, 7));
+        int minor = Integer.parseInt(serverVersion.substring(8, 11));
+        int protocol = major > 3 || minor >= 8 ? 8 : minor >= 7 ? 7 : 3;
+        out.write(String.format("RFB 003.%03d\n", protocol).getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+        if (protocol == 3) {
+            int type = in.readInt();
+            if (type == 0) {
+                throw new IOException("RFB connection refused: " + readString());
+            } else if (type != 1) {
+                throw new IOException("VNC server requires authentication; configure it with '-SecurityTypes None'");
+            }
+        } else {
+            int count = in.readUnsignedByte();
+            if (count == 0) {
+                throw new IOException("RFB connection refused: " + readString());
+            }
+            boolean none = false;
+            for (int i = 0; i < count; i++) {
+                none |= in.readUnsignedByte() == 1;
+            }
+            if (!none) {
+                throw new IOException("VNC server requires authentication; configure it with '-SecurityTypes None'");
+            }
+            out.writeByte(1);
+            out.flush();
+            if (protocol == 8 && in.readInt() != 0) {
+                throw new IOException("RFB security handshake failed: " + readString());
+            }
+        }
+        out.writeByte(1); // shared, so that other viewers are not disconnected
+        out.flush();
+        width = in.readUnsignedShort();
+        height = in.readUnsignedShort();
+        in.readFully(new byte[16]); // server pixel format, overridden below
+        in.readFully(new byte[in.readInt()]); // desktop name
+
+        out.writeByte(0); // SetPixelFormat
+        out.write(new byte[3]);
+        out.writeByte(32); // bits per pixel
+        out.writeByte(24); // depth
+        out.writeByte(0); // little endian
+        out.writeByte(1); // true colour
+        out.writeShort(255);
+        out.writeShort(255);
+        out.writeShort(255);
+        out.writeByte(16);
+        out.writeByte(8);
+        out.writeByte(0);
+        out.write(new byte[3]);
+
+        out.writeByte(2); // SetEncodings
+        out.writeByte(0);
+        out.writeShort(2);
+        out.writeInt(ENCODING_RAW);
+        out.writeInt(ENCODING_DESKTOP_SIZE);
+        out.flush();
+    }
+
+    private String readString() throws IOException {
+        byte[] text = new byte[in.readInt()];
+        in.readFully(text);
+        return new String(text, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Follows the screen until {@link #close} is called or the server goes away.
+     * The next update is only requested once the previous one has been paid for,
+     * so that changes made in the meantime are merged by the server into a single update.
+     * @param frameInterval minimum milliseconds between two updates, to bound the CPU spent on a busy screen
+     * @param bytesPerSecond pixel bytes per second to stay under on average, or 0 for no limit
+     */
+    void run(Listener listener, long frameInterval, long bytesPerSecond) throws IOException, InterruptedException {
+        try {
+            listener.resized(width, height);
+            requestUpdate(false);
+            while (!closed) {
+                int type = in.readUnsignedByte();
+                switch (type) {
+                case 0: // FramebufferUpdate
+                    long received = System.currentTimeMillis();
+                    long bytes = readUpdate(listener);
+                    listener.updated();
+                    long wait = received + pause(frameInterval, bytes, bytesPerSecond) - System.currentTimeMillis();
+                    if (wait > 0) {
+                        Thread.sleep(wait);
+                    }
+                    requestUpdate(true);
+                    break;
+                case 1: // SetColourMapEntries, irrelevant in true colour
+                    in.readUnsignedByte();
+                    in.readUnsignedShort();
+                    in.readFully(new byte[in.readUnsignedShort() * 6]);
+                    break;
+                case 2: // Bell
+                    break;
+                case 3: // ServerCutText
+                    in.readFully(new byte[3]);
+                    in.readFully(new byte[in.readInt()]);
+                    break;
+                default:
+                    throw new IOException("Unsupported RFB server message " + type);
+                }
+            }
+        } catch (IOException x) {
+            if (!closed) {
+                throw x;
+            }
+        }
+    }
+
+    /**
+     * Milliseconds to wait after an update before requesting the next one.
+     */
+    static long pause(long frameInterval, long bytes, long bytesPerSecond) {
+        return bytesPerSecond > 0 ? Math.max(frameInterval, bytes * 1000 / bytesPerSecond) : frameInterval;
+    }
+
+    /**
+     * @return the number of pixel bytes received
+     */
+    private long readUpdate(Listener listener) throws IOException {
+        in.readUnsignedByte();
+        int rectangles = in.readUnsignedShort();
+        long bytes = 0;
+        for (int i = 0; i < rectangles; i++) {
+            int x = in.readUnsignedShort();
+            int y = in.readUnsignedShort();
+            int w = in.readUnsignedShort();
+            int h = in.readUnsignedShort();
+            int encoding = in.readInt();
+            if (encoding == ENCODING_RAW) {
+                byte[] pixels = new byte[w * h * BYTES_PER_PIXEL];
+                in.readFully(pixels);
+                bytes += pixels.length;
+                listener.rectangle(x, y, w, h, pixels);
+            } else if (encoding == ENCODING_DESKTOP_SIZE) {
+                width = w;
+                height = h;
+                listener.resized(w, h);
+            } else {
+                throw new IOException("Unsupported RFB encoding " + encoding);
+            }
+        }
+        return bytes;
+    }
+
+    private void requestUpdate(boolean incremental) throws IOException {
+        out.writeByte(3); // FramebufferUpdateRequest
+        out.writeByte(incremental ? 1 : 0);
+        out.writeShort(0);
+        out.writeShort(0);
+        out.writeShort(width);
+        out.writeShort(height);
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        socket.close();
+    }
+}
@@ -0,0 +1,129 @@
+package hudson.plugins.xvnc;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import jenkins.util.BuildListenerAdapter;
+import jenkins.util.Timer;
+import net.jcip.annotations.GuardedBy;
+
+/**
+ * Archives the screenshots taken by a {@link ScreenshotQueue} in batches, in the background while the build runs.
+ * The last ones are archived along with the other files gathered by {@link DisplayCleanup}.
+ */
+final class ScreenshotArchiver implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(ScreenshotArchiver.class.getName());
+
+    /**
+     * Seconds between two batches.
+     */
+    static long INTERVAL = Long.getLong(ScreenshotArchiver.class.getName() + ".interval", 10);
+
+    /**
+     * Directory of the archived screenshots among the artifacts.
+     */
+    static final String ARTIFACTS = "screenshots";
+
+    private static final Map<String,ScreenshotArchiver> archivers = new ConcurrentHashMap<String,ScreenshotArchiver>();
+
+    private final Run<?,?> build;
+    private final FilePath out;
+    private final Launcher launcher;
+    private final TaskListener listener;
+    @GuardedBy("this")
+    private boolean stopped;
+    private ScheduledFuture<?> task;
+
+    private ScreenshotArchiver(Run<?,?> build, FilePath out, Launcher launcher, TaskListener listener) {
+        this.build = build;
+        this.out = out;
+        this.launcher = launcher;
+        this.listener = listener;
+    }
+
+    /**
+     * Starts archiving the screenshots of a queue.
+     * @param dir the spool directory of the queue
+     * @return an identifier to pass to {@link #stop}
+     */
+    static String start(Run<?,?> build, FilePath dir, Launcher launcher, TaskListener listener) {
+        String id = UUID.randomUUID().toString();
+        ScreenshotArchiver archiver = new ScreenshotArchiver(build, dir.child(ScreenshotQueue.OUT), launcher, listener);
+        archivers.put(id, archiver);
+        archiver.task = Timer.get().scheduleWithFixedDelay(archiver, INTERVAL, INTERVAL, TimeUnit.SECONDS);
+        return id;
+    }
+
+    /**
+     * Stops archiving in the background, waiting for a batch in progress.
+     * Does nothing if the archiver is unknown, e.g. after a restart of Jenkins.
+     */
+    static void stop(@CheckForNull String id) {
+        if (id == null) {
+            return;
+        }
+        ScreenshotArchiver archiver = archivers.remove(id);
+        if (archiver != null) {
+            synchronized (archiver) {
+                archiver.stopped = true;
+                archiver.task.cancel(false);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void run() {
+        if (stopped) {
+            return;
+        }
+        try {
+            archive(build, out, launcher, listener);
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+        } catch (Exception x) {
+            // Typically the channel went away; whatever is left is archived at the end, if possible.
+            LOGGER.log(Level.FINE, "Could not archive screenshots of " + build, x);
+        }
+    }
+
+    /**
+     * Archives the screenshots waiting in a queue and deletes them from the agent.
+     * @param out the directory encoded screenshots are written to
+     * @return how many were archived
+     */
+    static int archive(Run<?,?> build, FilePath out, Launcher launcher, TaskListener listener) throws IOException, InterruptedException {
+        if (!out.isDirectory()) {
+            return 0;
+        }
+        Map<String,String> artifacts = new TreeMap<String,String>();
+        List<String> names = new ArrayList<String>();
+        for (FilePath file : out.list()) {
+            String name = file.getName();
+            if (name.endsWith(".tmp")) {
+                continue; // still being written
+            }
+            artifacts.put(ARTIFACTS + "/" + name, name);
+            names.add(name);
+        }
+        if (names.isEmpty()) {
+            return 0;
+        }
+        build.getArtifactManager().archive(out, launcher, new BuildListenerAdapter(listener), artifacts);
+        out.act(new ScreenshotQueue.Remove(names));
+        return names.size();
+    }
+}
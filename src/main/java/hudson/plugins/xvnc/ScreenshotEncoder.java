@@ -0,0 +1,140 @@
+package hudson.plugins.xvnc;
+
+import hudson.remoting.VirtualChannel;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Iterator;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Converts a raw screenshot into the configured format, size and quality.
+ * Runs on the agent, so that only the encoded bytes are ever archived.
+ * If a size limit is set, quality and then resolution are lowered until the image fits.
+ */
+final class ScreenshotEncoder extends MasterToSlaveFileCallable<Long> {
+
+    private static final long serialVersionUID = 1;
+
+    /**
+     * Resolution below which an image is not shrunk any further to meet the size limit.
+     */
+    private static final int MIN_SCALE = 10;
+    private static final int MIN_QUALITY = 30;
+
+    private final ScreenshotFormat format;
+    private final int quality;
+    private final int scale;
+    private final long maxBytes;
+
+    /**
+     * @param quality lossy compression quality, from 1 to 100
+     * @param scale resolution in percent of the display size
+     * @param maxBytes size limit of the encoded image, or 0 for none
+     */
+    ScreenshotEncoder(ScreenshotFormat format, int quality, int scale, long maxBytes) {
+        this.format = format;
+        this.quality = quality;
+        this.scale = scale;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Name of the file the encoded screenshot is written to.
+     */
+    String getFileName() {
+        return format.getFileName();
+    }
+
+    String getExtension() {
+        return format.getExtension();
+    }
+
+    /**
+     * @param raw a screenshot in any format readable by {@link ImageIO}; deleted once encoded
+     * @return the size of the encoded screenshot
+     */
+    @Override
+    public Long invoke(File raw, VirtualChannel channel) throws IOException {
+        try {
+            BufferedImage image = ImageIO.read(raw);
+            if (image == null) {
+                throw new IOException("Unrecognized screenshot image " + raw);
+            }
+            byte[] data = encode(image);
+            Files.write(new File(raw.getParentFile(), getFileName()).toPath(), data);
+            return (long) data.length;
+        } finally {
+            Files.deleteIfExists(raw.toPath());
+        }
+    }
+
+    /**
+     * Encodes an image in the configured format, within the size limit.
+     */
+    byte[] encode(BufferedImage image) throws IOException {
+        int q = quality;
+        int s = scale;
+        while (true) {
+            byte[] data = encode(resize(image, s), q);
+            if (maxBytes <= 0 || data.length <= maxBytes) {
+                return data;
+            }
+            if (format.isLossy() && q > MIN_QUALITY) {
+                q = Math.max(MIN_QUALITY, q - 15);
+            } else if (s > MIN_SCALE) {
+                s = Math.max(MIN_SCALE, s * 3 / 4);
+            } else {
+                throw new IOException("Screenshot does not fit in " + maxBytes + " bytes even at " + s + "% of its size");
+            }
+        }
+    }
+
+    private static BufferedImage resize(BufferedImage image, int scale) {
+        int width = Math.max(1, image.getWidth() * scale / 100);
+        int height = Math.max(1, image.getHeight() * scale / 100);
+        if (scale == 100 && image.getType() == BufferedImage.TYPE_INT_RGB) {
+            return image;
+        }
+        // Also drops any alpha channel, which JPEG cannot store.
+        BufferedImage resized = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = resized.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            g.dispose();
+        }
+        return resized;
+    }
+
+    private byte[] encode(BufferedImage image, int quality) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersBySuffix(format.getExtension());
+        if (!writers.hasNext()) {
+            throw new IOException("No image writer for " + format);
+        }
+        ImageWriter writer = writers.next();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(ios);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (format.isLossy() && param.canWriteCompressed()) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(quality / 100f);
+            }
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,35 @@
+package hudson.plugins.xvnc;
+
+/**
+ * Image formats screenshots can be archived in.
+ */
+public enum ScreenshotFormat {
+    JPEG("jpg", true),
+    PNG("png", false);
+
+    private final String extension;
+    private final boolean lossy;
+
+    ScreenshotFormat(String extension, boolean lossy) {
+        this.extension = extension;
+        this.lossy = lossy;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+    /**
+     * Whether the quality setting applies to this format.
+     */
+    public boolean isLossy() {
+        return lossy;
+    }
+
+    /**
+     * Name of the archived screenshot.
+     */
+    public String getFileName() {
+        return "screenshot." + extension;
+    }
+}
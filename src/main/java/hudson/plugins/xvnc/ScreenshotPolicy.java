@@ -0,0 +1,33 @@
+package hudson.plugins.xvnc;
+
+import hudson.model.Result;
+import javax.annotation.CheckForNull;
+
+/**
+ * For which build results a screenshot is taken.
+ */
+public enum ScreenshotPolicy {
+    ALWAYS(Result.SUCCESS),
+    UNSTABLE(Result.UNSTABLE),
+    FAILURE(Result.FAILURE),
+    NEVER(null);
+
+    /**
+     * Best result for which a screenshot is still taken.
+     */
+    private final Result threshold;
+
+    ScreenshotPolicy(Result threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * @param result the result so far; null, as for a running build, counts as success
+     */
+    boolean appliesTo(@CheckForNull Result result) {
+        if (threshold == null) {
+            return false;
+        }
+        return (result != null ? result : Result.SUCCESS).isWorseOrEqualTo(threshold);
+    }
+}
@@ -0,0 +1,394 @@
+package hudson.plugins.xvnc;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.imageio.ImageIO;
+import jenkins.MasterToSlaveFileCallable;
+import net.jcip.annotations.GuardedBy;
+
+/**
+ * Takes screenshots of a display on request while a build runs, from the agent.
+ * <p>
+ * Requests come from the {@link XvncScreenshotStep} or from the helper script in the spool directory,
+ * which drops a file under <code>requests</code> and waits for it to be taken.
+ * The display is grabbed right away; comparing the image with the previous one and encoding it happen in the background,
+ * so the build only waits for the grab. Encoded screenshots end up under <code>out</code>, for {@link ScreenshotArchiver}.
+ */
+class ScreenshotQueue implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(ScreenshotQueue.class.getName());
+
+    /**
+     * Environment variable naming the helper script.
+     */
+    static final String ENV = "XVNC_SCREENSHOT";
+
+    static final String SCRIPT = "xvnc-screenshot";
+    static final String OUT = "out";
+    private static final String REQUESTS = "requests";
+
+    /**
+     * Minimum milliseconds between two screenshots; requests coming faster are skipped.
+     */
+    static long MIN_INTERVAL = Long.getLong(ScreenshotQueue.class.getName() + ".minInterval", 500);
+
+    /**
+     * Maximum number of screenshots taken on request per build.
+     */
+    static long MAX_CAPTURES = Long.getLong(ScreenshotQueue.class.getName() + ".maxCaptures", 200);
+
+    private static final long POLL_INTERVAL = 100;
+
+    /**
+     * Queues in this JVM, by spool directory.
+     */
+    private static final Map<String,ScreenshotQueue> queues = new ConcurrentHashMap<String,ScreenshotQueue>();
+
+    enum Outcome {
+        TAKEN, THROTTLED, LIMIT_REACHED, FAILED
+    }
+
+    private final File dir;
+    private final String display;
+    private final Map<String,String> xauthorityEnv;
+    private final ScreenshotEncoder encoder;
+    private final Thread thread;
+    private final ExecutorService worker;
+
+    @GuardedBy("this")
+    private long lastTaken;
+    @GuardedBy("this")
+    private int taken;
+    @GuardedBy("this")
+    private int skipped;
+    private volatile int duplicates;
+    /**
+     * Hash of the pixels of the last screenshot kept; only used by {@link #worker}.
+     */
+    private byte[] lastHash;
+    private volatile boolean stopping;
+
+    ScreenshotQueue(File dir, String display, Map<String,String> xauthorityEnv, ScreenshotEncoder encoder) {
+        this.dir = dir;
+        this.display = display;
+        this.xauthorityEnv = xauthorityEnv;
+        this.encoder = encoder;
+        this.thread = new Thread(this, "Xvnc screenshot requests for " + display);
+        thread.setDaemon(true);
+        this.worker = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "Xvnc screenshots of " + display);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Where the queue of a display keeps its files.
+     */
+    static FilePath directory(FilePath workspace, int displayNumber) {
+        return ServerLog.directory(workspace).child("xvnc-screenshots-" + displayNumber);
+    }
+
+    /**
+     * Serves requests dropped by the helper script.
+     */
+    @Override
+    public void run() {
+        File requests = new File(dir, REQUESTS);
+        while (!stopping) {
+            File[] files = requests.listFiles();
+            if (files != null) {
+                Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+                for (File request : files) {
+                    if (request.getName().endsWith(".tmp")) {
+                        continue;
+                    }
+                    try {
+                        String name = new String(Files.readAllBytes(request.toPath()), StandardCharsets.UTF_8).trim();
+                        take(name);
+                    } catch (IOException x) {
+                        LOGGER.log(Level.FINE, "Could not serve " + request, x);
+                    }
+                    if (!request.delete()) {
+                        LOGGER.log(Level.FINE, "Could not delete {0}", request);
+                    }
+                }
+            }
+            try {
+                Thread.sleep(POLL_INTERVAL);
+            } catch (InterruptedException x) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Grabs the display now, unless requests come too fast or too many were already served.
+     */
+    synchronized Outcome take(@CheckForNull String name) {
+        if (stopping) {
+            return Outcome.FAILED;
+        }
+        if (taken >= MAX_CAPTURES) {
+            skipped++;
+            return Outcome.LIMIT_REACHED;
+        }
+        long now = System.nanoTime();
+        if (taken > 0 && now - lastTaken < TimeUnit.MILLISECONDS.toNanos(MIN_INTERVAL)) {
+            skipped++;
+            return Outcome.THROTTLED;
+        }
+        final int sequence = taken + 1;
+        final File raw = new File(dir, sequence + ".raw.png");
+        if (!grab(raw)) {
+            return Outcome.FAILED;
+        }
+        lastTaken = now;
+        taken = sequence;
+        final String fileName = String.format("%04d-%s.%s", sequence, sanitize(name), encoder.getExtension());
+        worker.submit(() -> keep(raw, fileName));
+        return Outcome.TAKEN;
+    }
+
+    static String sanitize(@CheckForNull String name) {
+        if (name == null || name.trim().isEmpty()) {
+            return "screenshot";
+        }
+        String safe = name.trim().replaceAll("[^A-Za-z0-9._-]+", "_");
+        return safe.length() > 100 ? safe.substring(0, 100) : safe;
+    }
+
+    /**
+     * Runs the same commands as the screenshot taken at the end of the build.
+     */
+    boolean grab(File raw) {
+        String[][] commandSets = {
+                {"import", "-window", "root", "-display", display, raw.getAbsolutePath()},
+                {"gnome-screenshot", "--display", display, "--file", raw.getAbsolutePath()}
+        };
+        for (String[] commandSet : commandSets) {
+            ProcessBuilder pb = new ProcessBuilder(commandSet).directory(dir).redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.appendTo(new File(dir, "grab.log")));
+            pb.environment().putAll(xauthorityEnv);
+            try {
+                Process p = pb.start();
+                if (!p.waitFor(CommandRunner.SCREENSHOT_TIMEOUT, TimeUnit.SECONDS)) {
+                    p.destroyForcibly();
+                    continue;
+                }
+                if (p.exitValue() == 0 && raw.isFile()) {
+                    return true;
+                }
+            } catch (IOException x) {
+                LOGGER.log(Level.FINE, "Could not run " + commandSet[0], x);
+            } catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Encodes a screenshot unless it shows the same as the previous one.
+     */
+    private void keep(File raw, String fileName) {
+        try {
+            BufferedImage image = ImageIO.read(raw);
+            if (image == null) {
+                throw new IOException("Unrecognized screenshot image " + raw);
+            }
+            byte[] hash = hash(image);
+            if (Arrays.equals(hash, lastHash)) {
+                duplicates++;
+                return;
+            }
+            lastHash = hash;
+            File out = new File(dir, OUT);
+            File tmp = new File(out, fileName + ".tmp");
+            Files.write(tmp.toPath(), encoder.encode(image));
+            // Renamed once complete, so that it is never archived half written.
+            Files.move(tmp.toPath(), new File(out, fileName).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException x) {
+            LOGGER.log(Level.WARNING, "Could not keep screenshot " + fileName, x);
+        } finally {
+            if (!raw.delete()) {
+                LOGGER.log(Level.FINE, "Could not delete {0}", raw);
+            }
+        }
+    }
+
+    static byte[] hash(BufferedImage image) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException x) {
+            throw new AssertionError(x);
+        }
+        int width = image.getWidth();
+        int[] row = new int[width];
+        byte[] bytes = new byte[width * 4];
+        digest.update(new byte[] {(byte) (width >> 8), (byte) width, (byte) (image.getHeight() >> 8), (byte) image.getHeight()});
+        for (int y = 0; y < image.getHeight(); y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x++) {
+                bytes[4 * x] = (byte) (row[x] >> 24);
+                bytes[4 * x + 1] = (byte) (row[x] >> 16);
+                bytes[4 * x + 2] = (byte) (row[x] >> 8);
+                bytes[4 * x + 3] = (byte) row[x];
+            }
+            digest.update(bytes);
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Stops serving requests and waits for the screenshots taken to be encoded.
+     * @return how many screenshots were taken, identical to the previous one, and skipped
+     */
+    int[] stop() throws InterruptedException {
+        stopping = true;
+        thread.interrupt();
+        worker.shutdown();
+        if (!worker.awaitTermination(CommandRunner.SCREENSHOT_TIMEOUT, TimeUnit.SECONDS)) {
+            worker.shutdownNow();
+        }
+        synchronized (this) {
+            return new int[] {taken, duplicates, skipped};
+        }
+    }
+
+    private static String script() {
+        return "#!/bin/sh\n"
+                + "# Takes a screenshot of the display of the surrounding Xvnc wrapper.\n"
+                + "# Usage: " + SCRIPT + " [name]\n"
+                + "request=\"$(dirname \"$0\")/" + REQUESTS + "/$$-$(date +%s)\"\n"
+                + "printf '%s\\n' \"$1\" >\"$request.tmp\" && mv \"$request.tmp\" \"$request\" || exit 1\n"
+                + "n=0\n"
+                + "while [ -e \"$request\" ] && [ $n -lt " + (CommandRunner.SCREENSHOT_TIMEOUT * 10) + " ]; do\n"
+                + "  sleep 0.1\n"
+                + "  n=$((n + 1))\n"
+                + "done\n";
+    }
+
+    /**
+     * Starts serving requests for a display; the spool directory is created.
+     */
+    static final class Start extends MasterToSlaveFileCallable<Void> {
+
+        private static final long serialVersionUID = 1;
+
+        private final String display;
+        private final Map<String,String> xauthorityEnv;
+        private final ScreenshotEncoder encoder;
+
+        Start(String display, Map<String,String> xauthorityEnv, ScreenshotEncoder encoder) {
+            this.display = display;
+            this.xauthorityEnv = new HashMap<String,String>(xauthorityEnv);
+            this.encoder = encoder;
+        }
+
+        @Override
+        public Void invoke(File dir, VirtualChannel channel) throws IOException {
+            Files.createDirectories(new File(dir, REQUESTS).toPath());
+            Files.createDirectories(new File(dir, OUT).toPath());
+            // Left over by a previous build on this display, and already archived.
+            Util.deleteContentsRecursive(new File(dir, REQUESTS));
+            Util.deleteContentsRecursive(new File(dir, OUT));
+            File script = new File(dir, SCRIPT);
+            Files.write(script.toPath(), script().getBytes(StandardCharsets.UTF_8));
+            if (!script.setExecutable(true)) {
+                throw new IOException("Could not make " + script + " executable");
+            }
+            ScreenshotQueue queue = new ScreenshotQueue(dir, display, xauthorityEnv, encoder);
+            ScreenshotQueue previous = queues.put(dir.getAbsolutePath(), queue);
+            if (previous != null) {
+                previous.stopping = true;
+                previous.thread.interrupt();
+                previous.worker.shutdownNow();
+            }
+            queue.thread.start();
+            return null;
+        }
+    }
+
+    /**
+     * Takes a screenshot for the pipeline step.
+     */
+    static final class Take extends MasterToSlaveFileCallable<Outcome> {
+
+        private static final long serialVersionUID = 1;
+
+        @CheckForNull
+        private final String name;
+
+        Take(@CheckForNull String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Outcome invoke(File dir, VirtualChannel channel) throws IOException {
+            ScreenshotQueue queue = queues.get(dir.getAbsolutePath());
+            if (queue == null) {
+                throw new IOException("Screenshots of this display are no longer taken");
+            }
+            return queue.take(name);
+        }
+    }
+
+    /**
+     * Stops a queue; returns the counts of {@link #stop}, or null if it was not running, such as after an agent restart.
+     */
+    static final class Stop extends MasterToSlaveFileCallable<int[]> {
+
+        private static final long serialVersionUID = 1;
+
+        @Override
+        public int[] invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+            ScreenshotQueue queue = queues.remove(dir.getAbsolutePath());
+            return queue != null ? queue.stop() : null;
+        }
+    }
+
+    /**
+     * Deletes screenshots once archived.
+     */
+    static final class Remove extends MasterToSlaveFileCallable<Void> {
+
+        private static final long serialVersionUID = 1;
+
+        private final List<String> names;
+
+        Remove(List<String> names) {
+            this.names = names;
+        }
+
+        @Override
+        public Void invoke(File out, VirtualChannel channel) throws IOException {
+            for (String name : names) {
+                Files.deleteIfExists(new File(out, name).toPath());
+            }
+            return null;
+        }
+    }
+}
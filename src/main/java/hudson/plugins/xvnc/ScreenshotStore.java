@@ -0,0 +1,136 @@
+package hudson.plugins.xvnc;
+
+import hudson.FilePath;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.UUID;
+import java.util.regex.Pattern;
+import jenkins.model.Jenkins;
+
+/**
+ * Screenshots of all builds, stored once per content under <code>$JENKINS_HOME/xvnc-screenshots</code>.
+ * <p>
+ * An image is named after the SHA-256 of its bytes, which the agent computes so that an image already stored is not transferred.
+ * Each build holding an image has a reference to it, an empty file under <code>refs/<i>hash</i>/</code>;
+ * the image is deleted along with the last reference.
+ */
+final class ScreenshotStore {
+
+    static final Pattern HASH = Pattern.compile("[0-9a-f]{64}");
+
+    /**
+     * Guards adding and removing references against each other, in all stores.
+     */
+    private static final Object LOCK = new Object();
+
+    private final File root;
+
+    ScreenshotStore(File root) {
+        this.root = root;
+    }
+
+    static ScreenshotStore get() {
+        return new ScreenshotStore(new File(Jenkins.getActiveInstance().getRootDir(), "xvnc-screenshots"));
+    }
+
+    File image(String hash, String extension) {
+        return new File(root, "images/" + hash.substring(0, 2) + "/" + hash + "." + extension);
+    }
+
+    private File refs(String hash) {
+        return new File(root, "refs/" + hash);
+    }
+
+    /**
+     * Adds a reference to an image, first transferring the image unless it is already stored.
+     * @param source the image, on the agent
+     * @return the new reference, to pass to {@link #release}
+     * @throws IOException if the image could not be transferred or is not what its hash says
+     */
+    String add(String hash, String extension, FilePath source) throws IOException, InterruptedException {
+        if (!HASH.matcher(hash).matches()) {
+            throw new IOException("Invalid screenshot hash " + hash);
+        }
+        File image = image(hash, extension);
+        synchronized (LOCK) {
+            if (image.isFile()) {
+                return reference(hash);
+            }
+        }
+        Files.createDirectories(image.getParentFile().toPath());
+        File tmp = new File(image.getParentFile(), hash + "." + UUID.randomUUID() + ".tmp");
+        try {
+            try (OutputStream os = Files.newOutputStream(tmp.toPath())) {
+                source.copyTo(os);
+            }
+            try (InputStream is = Files.newInputStream(tmp.toPath())) {
+                if (!hash.equals(sha256(is))) {
+                    throw new IOException("Screenshot transferred from " + source + " does not match its hash " + hash);
+                }
+            }
+            synchronized (LOCK) {
+                if (!image.isFile()) {
+                    Files.move(tmp.toPath(), image.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                }
+                return reference(hash);
+            }
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    private String reference(String hash) throws IOException {
+        assert Thread.holdsLock(LOCK);
+        String ref = UUID.randomUUID().toString();
+        File refs = refs(hash);
+        Files.createDirectories(refs.toPath());
+        Files.createFile(new File(refs, ref).toPath());
+        return ref;
+    }
+
+    /**
+     * Removes a reference, and the image if it was the last one.
+     */
+    void release(String hash, String extension, String ref) throws IOException {
+        if (!HASH.matcher(hash).matches() || ref.contains("/") || ref.contains("..")) {
+            throw new IOException("Invalid screenshot reference " + hash + "/" + ref);
+        }
+        synchronized (LOCK) {
+            File refs = refs(hash);
+            Files.deleteIfExists(new File(refs, ref).toPath());
+            String[] left = refs.list();
+            if (left == null || left.length == 0) {
+                Files.deleteIfExists(refs.toPath());
+                Files.deleteIfExists(image(hash, extension).toPath());
+            }
+        }
+    }
+
+    /**
+     * Hex SHA-256 of some content; also used on agents.
+     */
+    static String sha256(InputStream is) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException x) {
+            throw new AssertionError(x);
+        }
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = is.read(buf)) != -1) {
+            digest.update(buf, 0, n);
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
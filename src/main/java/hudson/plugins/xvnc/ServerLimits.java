@@ -0,0 +1,120 @@
+package hudson.plugins.xvnc;
+
+import hudson.Util;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+import javax.annotation.CheckForNull;
+
+/**
+ * Where and how much an X server may run, applied by prefixing its command line:
+ * <code>systemd-run --user --scope</code> for cgroup limits, <code>taskset</code> for CPU affinity
+ * and <code>nice</code> for priority. Each of them execs the next, so the server keeps the process
+ * and environment it would have had without limits, and servers daemonized by <code>vncserver</code> inherit them.
+ */
+final class ServerLimits {
+
+    static final Pattern CPUS = Pattern.compile("\\d+(-\\d+)?(,\\d+(-\\d+)?)*");
+    static final Pattern MEMORY = Pattern.compile("\\d+[KMGT]?");
+
+    @CheckForNull
+    private final String cpus;
+    private final int nice;
+    @CheckForNull
+    private final String memoryMax;
+    private final int cpuQuota;
+
+    /**
+     * @param cpus CPU list as understood by <code>taskset -c</code>, or null for any
+     * @param nice niceness increment, or 0 to leave it
+     * @param memoryMax memory limit as understood by systemd, such as <code>512M</code>, or null for none
+     * @param cpuQuota CPU time limit in percent of one CPU, or 0 for none
+     */
+    ServerLimits(@CheckForNull String cpus, int nice, @CheckForNull String memoryMax, int cpuQuota) {
+        this.cpus = Util.fixEmptyAndTrim(cpus);
+        this.nice = nice;
+        this.memoryMax = Util.fixEmptyAndTrim(memoryMax);
+        this.cpuQuota = cpuQuota;
+    }
+
+    boolean isEmpty() {
+        return cpus == null && nice == 0 && !needsCgroup();
+    }
+
+    boolean needsCgroup() {
+        return memoryMax != null || cpuQuota > 0;
+    }
+
+    /**
+     * Command checking whether cgroup limits can be applied by the user running the agent:
+     * prints the controllers available to a scope, which only enforces the limits whose controller is delegated to the user.
+     */
+    static String[] cgroupProbe() {
+        return new String[] {"systemd-run", "--user", "--scope", "--quiet", "sh", "-c",
+                "cat \"/sys/fs/cgroup$(sed -n 's/^0:://p' /proc/self/cgroup)/cgroup.controllers\""};
+    }
+
+    /**
+     * @param controllers output of {@link #cgroupProbe}
+     * @return the controllers needed but not available, or null if none is missing
+     */
+    @CheckForNull
+    String missingControllers(String controllers) {
+        List<String> available = Arrays.asList(controllers.trim().split("\\s+"));
+        List<String> missing = new ArrayList<String>();
+        if (memoryMax != null && !available.contains("memory")) {
+            missing.add("memory");
+        }
+        if (cpuQuota > 0 && !available.contains("cpu")) {
+            missing.add("cpu");
+        }
+        return missing.isEmpty() ? null : String.join(", ", missing);
+    }
+
+    /**
+     * @param cgroup whether {@link #cgroupProbe} succeeded and no controller was {@linkplain #missingControllers missing}
+     */
+    String[] apply(String[] cmds, boolean cgroup) {
+        List<String> result = new ArrayList<String>();
+        if (cgroup && needsCgroup()) {
+            result.addAll(Arrays.asList("systemd-run", "--user", "--scope", "--quiet"));
+            if (memoryMax != null) {
+                result.add("-p");
+                result.add("MemoryMax=" + memoryMax);
+            }
+            if (cpuQuota > 0) {
+                result.add("-p");
+                result.add("CPUQuota=" + cpuQuota + "%");
+            }
+        }
+        if (cpus != null) {
+            result.addAll(Arrays.asList("taskset", "-c", cpus));
+        }
+        if (nice != 0) {
+            result.addAll(Arrays.asList("nice", "-n", String.valueOf(nice)));
+        }
+        result.addAll(Arrays.asList(cmds));
+        return result.toArray(new String[0]);
+    }
+
+    /**
+     * Human readable summary of what {@link #apply} enforces.
+     */
+    String describe(boolean cgroup) {
+        List<String> parts = new ArrayList<String>();
+        if (cpus != null) {
+            parts.add("CPUs " + cpus);
+        }
+        if (nice != 0) {
+            parts.add("nice " + nice);
+        }
+        if (cgroup && memoryMax != null) {
+            parts.add("memory " + memoryMax);
+        }
+        if (cgroup && cpuQuota > 0) {
+            parts.add("CPU quota " + cpuQuota + "%");
+        }
+        return parts.isEmpty() ? "none" : String.join(", ", parts);
+    }
+}
@@ -0,0 +1,216 @@
+package hudson.plugins.xvnc;
+
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.WorkspaceList;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.security.MasterToSlaveCallable;
+
+/**
+ * Output of an X server, kept in a file on the agent rather than streamed into the build log.
+ * The file is trimmed to its most recent output whenever it grows beyond {@link #MAX_BYTES},
+ * and only its tail is shown: when the server fails or dies, or at the end of the build if asked for.
+ */
+final class ServerLog implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(ServerLog.class.getName());
+
+    /**
+     * Environment variable naming the file the server writes to, see {@link #redirect}.
+     */
+    static final String ENV = "XVNC_SERVER_LOG";
+
+    /**
+     * Size in bytes above which the file is trimmed to half of it.
+     */
+    static long MAX_BYTES = Long.getLong(ServerLog.class.getName() + ".maxBytes", 1024 * 1024);
+
+    /**
+     * How many bytes of the end of the output are shown in the build log.
+     */
+    static int TAIL_BYTES = Integer.getInteger(ServerLog.class.getName() + ".tailBytes", 8 * 1024);
+
+    private static final long TRIM_INTERVAL = TimeUnit.SECONDS.toMillis(10);
+
+    /**
+     * Logs being trimmed in this JVM, by identifier.
+     */
+    private static final Map<String,ServerLog> logs = new ConcurrentHashMap<String,ServerLog>();
+
+    private final File file;
+    private final long maxBytes;
+    private final Thread thread;
+
+    private ServerLog(File file, long maxBytes) {
+        this.file = file;
+        this.maxBytes = maxBytes;
+        this.thread = new Thread(this, "Xvnc server log " + file);
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Where server logs of builds in a workspace go; next to the workspace, so they are not archived by accident.
+     */
+    static FilePath directory(FilePath workspace) {
+        FilePath tmp = WorkspaceList.tempDir(workspace);
+        return tmp != null ? tmp : workspace;
+    }
+
+    static FilePath fileFor(FilePath directory, int displayNumber) {
+        return directory.child(".xvnc-" + displayNumber + ".log");
+    }
+
+    /**
+     * Wraps a server command line so that its output goes to the file named by {@link #ENV}, emptied first.
+     * The server appends to the file, which lets it be trimmed while the server keeps writing.
+     */
+    static String[] redirect(String[] cmds) {
+        String[] wrapped = new String[cmds.length + 3];
+        wrapped[0] = "sh";
+        wrapped[1] = "-c";
+        wrapped[2] = ": >\"$" + ENV + "\"; exec \"$0\" \"$@\" >>\"$" + ENV + "\" 2>&1";
+        System.arraycopy(cmds, 0, wrapped, 3, cmds.length);
+        return wrapped;
+    }
+
+    /**
+     * Copies the end of a server log into the build log, if there is anything to show.
+     */
+    static void printTail(@CheckForNull FilePath log, TaskListener listener) {
+        if (log == null) {
+            return;
+        }
+        try {
+            printTail(log.act(new Tail()), listener);
+        } catch (IOException | InterruptedException x) {
+            LOGGER.log(Level.FINE, "Could not read " + log, x);
+        }
+    }
+
+    static void printTail(@CheckForNull String tail, TaskListener listener) {
+        if (tail != null && !tail.isEmpty()) {
+            listener.getLogger().println("Last output of the X server:");
+            listener.getLogger().print(tail.endsWith("\n") ? tail : tail + "\n");
+        }
+    }
+
+    static String tail(File file, int bytes) throws IOException {
+        if (!file.isFile()) {
+            return "";
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long length = raf.length();
+            byte[] buf = new byte[(int) Math.min(bytes, length)];
+            raf.seek(length - buf.length);
+            raf.readFully(buf);
+            return new String(buf, StandardCharsets.UTF_8);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                Thread.sleep(TRIM_INTERVAL);
+                trim();
+            }
+        } catch (InterruptedException x) {
+            // stopped
+        }
+    }
+
+    /**
+     * Keeps the newer half of the file once it is too large.
+     * Output written by the server between reading and rewriting is lost, which is fine for a log.
+     */
+    void trim() {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long length = raf.length();
+            if (length <= maxBytes) {
+                return;
+            }
+            byte[] buf = new byte[(int) (maxBytes / 2)];
+            raf.seek(length - buf.length);
+            raf.readFully(buf);
+            raf.setLength(0);
+            raf.write(buf);
+        } catch (IOException x) {
+            LOGGER.log(Level.FINE, "Could not trim " + file, x);
+        }
+    }
+
+    /**
+     * Reads the end of a server log.
+     */
+    static final class Tail extends MasterToSlaveFileCallable<String> {
+
+        private static final long serialVersionUID = 1;
+
+        @Override
+        public String invoke(File f, VirtualChannel channel) throws IOException {
+            return tail(f, TAIL_BYTES);
+        }
+    }
+
+    /**
+     * Starts bounding the size of a server log; returns an identifier to pass to {@link Stop}.
+     */
+    static final class Start extends MasterToSlaveFileCallable<String> {
+
+        private static final long serialVersionUID = 1;
+
+        @Override
+        public String invoke(File f, VirtualChannel channel) throws IOException {
+            ServerLog log = new ServerLog(f, MAX_BYTES);
+            String id = UUID.randomUUID().toString();
+            logs.put(id, log);
+            log.thread.start();
+            return id;
+        }
+    }
+
+    /**
+     * Stops bounding a server log and deletes it.
+     * Returns its tail if asked for, otherwise or if the log is unknown null.
+     */
+    static final class Stop extends MasterToSlaveCallable<String,IOException> {
+
+        private static final long serialVersionUID = 1;
+
+        private final String id;
+        private final boolean tail;
+
+        Stop(String id, boolean tail) {
+            this.id = id;
+            this.tail = tail;
+        }
+
+        @Override
+        public String call() throws IOException {
+            ServerLog log = logs.remove(id);
+            if (log == null) {
+                return null;
+            }
+            log.thread.interrupt();
+            try {
+                return tail ? tail(log.file, TAIL_BYTES) : null;
+            } finally {
+                if (!log.file.delete() && log.file.exists()) {
+                    LOGGER.log(Level.FINE, "Could not delete {0}", log.file);
+                }
+            }
+        }
+    }
+}
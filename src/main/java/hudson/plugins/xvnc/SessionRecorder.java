@@ -0,0 +1,203 @@
+package hudson.plugins.xvnc;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import org.apache.commons.io.output.CountingOutputStream;
+
+/**
+ * Writes the screen updates received by an {@link RfbClient} into a compact, seekable recording.
+ * Only changed rectangles are stored, plus a full keyframe at most every {@link #keyframeInterval} milliseconds
+ * while the screen changes, so an idle screen produces no data at all.
+ * <p>
+ * The format, all numbers big endian, pixels as delivered by {@link RfbClient} and deflated:
+ * <pre>
+ * header:    "XVNCREC1" u16 width, u16 height, u8 bytes per pixel
+ * resize:    u8 3, u32 millis, u16 width, u16 height
+ * keyframe:  u8 1, u32 millis, u16 width, u16 height, u32 length, pixels
+ * rectangle: u8 2, u32 millis, u16 x, u16 y, u16 width, u16 height, u32 length, pixels
+ * trailer:   u32 count, count * (u32 millis, u64 offset of keyframe), u64 offset of trailer, "XVNCIDX1"
+ * </pre>
+ * A player seeks by reading the trailer, jumping to the last keyframe before the wanted time
+ * and applying the rectangles following it.
+ */
+final class SessionRecorder implements RfbClient.Listener, Closeable {
+
+    static final byte[] MAGIC = "XVNCREC1".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] INDEX_MAGIC = "XVNCIDX1".getBytes(StandardCharsets.US_ASCII);
+    static final int KEYFRAME = 1;
+    static final int RECTANGLE = 2;
+    static final int RESIZE = 3;
+
+    /**
+     * Counts the bytes written in a long, as {@link DataOutputStream#size} stops at 2 GiB.
+     */
+    private final CountingOutputStream counter;
+    private final DataOutputStream out;
+    private final long maxBytes;
+    private final long keyframeInterval;
+    private final long start = System.currentTimeMillis();
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final byte[] buffer = new byte[64 * 1024];
+    /**
+     * Millisecond and file offset of every keyframe.
+     */
+    private final List<long[]> index = new ArrayList<long[]>();
+
+    private byte[] framebuffer;
+    private int width;
+    private int height;
+    private boolean headerWritten;
+    private long lastKeyframe = Long.MIN_VALUE;
+    private boolean changed;
+    private volatile boolean truncated;
+
+    /**
+     * @param maxBytes size limit of the recording; once reached, {@link #updated} throws {@link EOFException}
+     */
+    SessionRecorder(File file, long maxBytes, long keyframeInterval) throws IOException {
+        this.counter = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        this.out = new DataOutputStream(counter);
+        this.maxBytes = maxBytes;
+        this.keyframeInterval = keyframeInterval;
+    }
+
+    /**
+     * Whether updates were dropped because the size limit was reached.
+     */
+    boolean isTruncated() {
+        return truncated;
+    }
+
+    long size() {
+        return counter.getByteCount();
+    }
+
+    private int now() {
+        return (int) (System.currentTimeMillis() - start);
+    }
+
+    private boolean keyframeDue() {
+        return lastKeyframe == Long.MIN_VALUE || System.currentTimeMillis() - lastKeyframe >= keyframeInterval;
+    }
+
+    @Override
+    public synchronized void resized(int width, int height) throws IOException {
+        this.width = width;
+        this.height = height;
+        framebuffer = new byte[width * height * RfbClient.BYTES_PER_PIXEL];
+        if (!headerWritten) {
+            out.write(MAGIC);
+            out.writeShort(width);
+            out.writeShort(height);
+            out.writeByte(RfbClient.BYTES_PER_PIXEL);
+            headerWritten = true;
+        } else if (fits(9)) {
+            out.writeByte(RESIZE);
+            out.writeInt(now());
+            out.writeShort(width);
+            out.writeShort(height);
+        }
+        lastKeyframe = Long.MIN_VALUE;
+    }
+
+    @Override
+    public synchronized void rectangle(int x, int y, int w, int h, byte[] pixels) throws IOException {
+        int rowBytes = w * RfbClient.BYTES_PER_PIXEL;
+        for (int row = 0; row < h && y + row < height && x < width; row++) {
+            System.arraycopy(pixels, row * rowBytes, framebuffer, ((y + row) * width + x) * RfbClient.BYTES_PER_PIXEL,
+                    Math.min(rowBytes, (width - x) * RfbClient.BYTES_PER_PIXEL));
+        }
+        changed = true;
+        if (keyframeDue()) {
+            return; // the keyframe written at the end of this update includes it
+        }
+        byte[] data = deflate(pixels);
+        if (fits(17 + data.length)) {
+            out.writeByte(RECTANGLE);
+            out.writeInt(now());
+            out.writeShort(x);
+            out.writeShort(y);
+            out.writeShort(w);
+            out.writeShort(h);
+            out.writeInt(data.length);
+            out.write(data);
+        }
+    }
+
+    @Override
+    public synchronized void updated() throws IOException {
+        if (!changed || !keyframeDue()) {
+            return;
+        }
+        byte[] data = deflate(framebuffer);
+        if (fits(13 + data.length)) {
+            index.add(new long[] {now(), size()});
+            out.writeByte(KEYFRAME);
+            out.writeInt(now());
+            out.writeShort(width);
+            out.writeShort(height);
+            out.writeInt(data.length);
+            out.write(data);
+            lastKeyframe = System.currentTimeMillis();
+        }
+        changed = false;
+        if (truncated) {
+            throw new EOFException("Recording reached its size limit of " + maxBytes + " bytes");
+        }
+    }
+
+    /**
+     * Checks whether a record still fits within the limit, leaving room for the trailer.
+     */
+    private boolean fits(int length) {
+        long trailer = 4 + 12L * (index.size() + 1) + 8 + INDEX_MAGIC.length;
+        if (truncated || size() + length + trailer > maxBytes) {
+            truncated = true;
+            return false;
+        }
+        return true;
+    }
+
+    private byte[] deflate(byte[] data) {
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 8 + 64);
+        while (!deflater.finished()) {
+            compressed.write(buffer, 0, deflater.deflate(buffer));
+        }
+        return compressed.toByteArray();
+    }
+
+    /**
+     * Writes the trailer and closes the file.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (headerWritten) {
+                long offset = size();
+                out.writeInt(index.size());
+                for (long[] entry : index) {
+                    out.writeInt((int) entry[0]);
+                    out.writeLong(entry[1]);
+                }
+                out.writeLong(offset);
+                out.write(INDEX_MAGIC);
+            }
+        } finally {
+            deflater.end();
+            out.close();
+        }
+    }
+}
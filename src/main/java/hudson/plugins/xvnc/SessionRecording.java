@@ -0,0 +1,147 @@
+package hudson.plugins.xvnc;
+
+import hudson.remoting.VirtualChannel;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.security.MasterToSlaveCallable;
+
+/**
+ * A recording of a display in progress on an agent.
+ * Started and stopped from the controller through {@link Start} and {@link Stop}.
+ */
+final class SessionRecording implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(SessionRecording.class.getName());
+
+    /**
+     * Name of the recording in the workspace and among the artifacts.
+     */
+    static final String FILENAME = "xvnc-session.xvncrec";
+
+    /**
+     * Minimum milliseconds between two recorded updates.
+     */
+    static long FRAME_INTERVAL = Long.getLong(SessionRecording.class.getName() + ".frameInterval", 200);
+
+    /**
+     * Minimum milliseconds between two keyframes.
+     */
+    static long KEYFRAME_INTERVAL = Long.getLong(SessionRecording.class.getName() + ".keyframeInterval", TimeUnit.SECONDS.toMillis(30));
+
+    private static final long CONNECT_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * Recordings running in this JVM, by identifier.
+     */
+    private static final Map<String,SessionRecording> recordings = new ConcurrentHashMap<String,SessionRecording>();
+
+    private final int displayNumber;
+    private final SessionRecorder recorder;
+    private final Thread thread;
+    private volatile RfbClient client;
+    private volatile boolean stopping;
+    private volatile IOException failure;
+
+    private SessionRecording(int displayNumber, SessionRecorder recorder) {
+        this.displayNumber = displayNumber;
+        this.recorder = recorder;
+        this.thread = new Thread(this, "Xvnc session recording of :" + displayNumber);
+        thread.setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        try {
+            client = RfbClient.connect("localhost", 5900 + displayNumber, CONNECT_TIMEOUT);
+            if (stopping) {
+                client.close();
+                return;
+            }
+            client.run(recorder, FRAME_INTERVAL, 0);
+        } catch (IOException x) {
+            if (!stopping && !recorder.isTruncated()) {
+                failure = x;
+            }
+        } catch (InterruptedException x) {
+            // stopped
+        } finally {
+            RfbClient c = client;
+            if (c != null) {
+                try {
+                    c.close();
+                } catch (IOException x) {
+                    LOGGER.log(Level.FINE, null, x);
+                }
+            }
+        }
+    }
+
+    private long stop() throws IOException, InterruptedException {
+        stopping = true;
+        RfbClient c = client;
+        if (c != null) {
+            c.close();
+        }
+        thread.interrupt();
+        thread.join(TimeUnit.SECONDS.toMillis(10));
+        recorder.close();
+        if (failure != null) {
+            throw new IOException("Recording of display :" + displayNumber + " failed", failure);
+        }
+        return recorder.size();
+    }
+
+    /**
+     * Starts recording a display into a file.
+     * Returns the identifier to pass to {@link Stop}.
+     */
+    static final class Start extends MasterToSlaveFileCallable<String> {
+
+        private static final long serialVersionUID = 1;
+
+        private final int displayNumber;
+        private final long maxBytes;
+
+        Start(int displayNumber, long maxBytes) {
+            this.displayNumber = displayNumber;
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public String invoke(File file, VirtualChannel channel) throws IOException {
+            SessionRecording recording = new SessionRecording(displayNumber, new SessionRecorder(file, maxBytes, KEYFRAME_INTERVAL));
+            String id = UUID.randomUUID().toString();
+            recordings.put(id, recording);
+            recording.thread.start();
+            return id;
+        }
+    }
+
+    /**
+     * Stops a recording and completes its file.
+     * Returns the size of the recording, or -1 if it is unknown, e.g. because the agent was restarted.
+     */
+    static final class Stop extends MasterToSlaveCallable<Long,Exception> {
+
+        private static final long serialVersionUID = 1;
+
+        private final String id;
+
+        Stop(String id) {
+            this.id = id;
+        }
+
+        @Override
+        public Long call() throws Exception {
+            SessionRecording recording = recordings.remove(id);
+            return recording != null ? recording.stop() : -1;
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package hudson.plugins.xvnc;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.annotation.CheckForNull;
+import jenkins.model.Jenkins;
+import jenkins.security.MasterToSlaveCallable;
+import jenkins.util.Timer;
+
+/**
+ * Removes X servers and lock files left behind by builds which are no longer running.
+ * Only displays in the configured range which {@link DisplayAllocator} does not consider allocated are touched.
+ * <p>
+ * The allocator only knows about builds of this node, while other agents or controllers may run X servers on the same host.
+ * A server which is still running is therefore only killed when {@link HostDisplays} locks tell that nobody on the host uses its display,
+ * and only if it looks like a VNC server; without host locks, only lock files of servers which are gone are removed.
+ */
+@Extension
+public class StaleDisplayReaper extends AsyncPeriodicWork {
+
+    private static final Logger LOGGER = Logger.getLogger(StaleDisplayReaper.class.getName());
+
+    /**
+     * Minutes between two background runs over all nodes.
+     */
+    static long RECURRENCE = Long.getLong(StaleDisplayReaper.class.getName() + ".recurrence", 10);
+
+    /**
+     * Lock files younger than this many seconds are never reaped,
+     * as they may belong to a server whose allocation raced with the reaper.
+     */
+    static long GRACE = Long.getLong(StaleDisplayReaper.class.getName() + ".grace", 120);
+
+    /**
+     * When each node was last reaped, by node name.
+     */
+    private static final Map<String,Long> lastReaped = new ConcurrentHashMap<String,Long>();
+
+    public StaleDisplayReaper() {
+        super("Xvnc stale display reaper");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return TimeUnit.MINUTES.toMillis(RECURRENCE);
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        Jenkins jenkins = Jenkins.getActiveInstance();
+        Xvnc.DescriptorImpl descriptor = jenkins.getDescriptorByType(Xvnc.DescriptorImpl.class);
+        if (!descriptor.cleanUp) {
+            return;
+        }
+        for (String name : descriptor.getAllocatorNodeNames()) {
+            Node node = name.isEmpty() ? jenkins : jenkins.getNode(name);
+            if (node == null) {
+                continue;
+            }
+            try {
+                reap(node, listener);
+            } catch (IOException x) {
+                listener.error("Could not clean up stale displays on " + node.getDisplayName() + ": " + x);
+            }
+        }
+    }
+
+    /**
+     * Schedules a clean up of the given node in the background, unless one ran recently.
+     */
+    static void reapSoon(final Node node) {
+        Long last = lastReaped.get(node.getNodeName());
+        if (last != null && System.currentTimeMillis() - last < TimeUnit.MINUTES.toMillis(RECURRENCE)) {
+            return;
+        }
+        Timer.get().submit(new Runnable() {
+            @Override public void run() {
+                try {
+                    reap(node, TaskListener.NULL);
+                } catch (Exception x) {
+                    LOGGER.log(Level.WARNING, "Could not clean up stale displays on " + node.getDisplayName(), x);
+                }
+            }
+        });
+    }
+
+    /**
+     * Cleans up orphaned servers and lock files on a node.
+     * @return the display numbers which were reaped
+     */
+    static List<Integer> reap(Node node, TaskListener listener) throws IOException, InterruptedException {
+        FilePath root = node.getRootPath();
+        if (root == null) {
+            return Collections.emptyList(); // offline
+        }
+        lastReaped.put(node.getNodeName(), System.currentTimeMillis());
+        Xvnc.DescriptorImpl descriptor = Jenkins.getActiveInstance().getDescriptorByType(Xvnc.DescriptorImpl.class);
+        DisplayAllocator allocator = Xvnc.getAllocator(node);
+        List<Integer> reaped = root.act(new Reap("/tmp", descriptor.minDisplayNumber, descriptor.maxDisplayNumber,
+                allocator.getAllocatedNumbers(), Xvnc.hostLockDirectory(), TimeUnit.SECONDS.toMillis(GRACE)));
+        for (int displayNumber : reaped) {
+            allocator.unblacklist(displayNumber);
+        }
+        if (!reaped.isEmpty()) {
+            listener.getLogger().println("Cleaned up stale displays " + reaped + " on " + node.getDisplayName());
+        }
+        return reaped;
+    }
+
+    static final class Reap extends MasterToSlaveCallable<List<Integer>,IOException> {
+
+        private static final long serialVersionUID = 1;
+
+        private static final Pattern LOCK_FILE = Pattern.compile("\\.X(\\d+)-lock");
+        private static final Pattern VNC_SERVER = Pattern.compile("X.*vnc", Pattern.CASE_INSENSITIVE);
+
+        /**
+         * Where X servers keep their lock files and sockets, normally <code>/tmp</code>.
+         */
+        private final String tmp;
+        private final int minDisplayNumber;
+        private final int maxDisplayNumber;
+        private final Set<Integer> allocated;
+        @CheckForNull
+        private final String hostLockDirectory;
+        private final long grace;
+        private final long timeout = CommandRunner.PROBE_TIMEOUT;
+
+        Reap(String tmp, int minDisplayNumber, int maxDisplayNumber, Set<Integer> allocated, @CheckForNull String hostLockDirectory, long grace) {
+            this.tmp = tmp;
+            this.minDisplayNumber = minDisplayNumber;
+            this.maxDisplayNumber = maxDisplayNumber;
+            this.allocated = new HashSet<Integer>(allocated);
+            this.hostLockDirectory = hostLockDirectory;
+            this.grace = grace;
+        }
+
+        @Override
+        public List<Integer> call() throws IOException {
+            List<Integer> reaped = new ArrayList<Integer>();
+            File[] files = new File(tmp).listFiles();
+            if (File.pathSeparatorChar != ':' || files == null) {
+                return reaped;
+            }
+            for (File lock : files) {
+                Matcher m = LOCK_FILE.matcher(lock.getName());
+                if (!m.matches()) {
+                    continue;
+                }
+                int displayNumber = Integer.parseInt(m.group(1));
+                if (displayNumber < minDisplayNumber || displayNumber > maxDisplayNumber || allocated.contains(displayNumber)) {
+                    continue;
+                }
+                if (System.currentTimeMillis() - lock.lastModified() < grace) {
+                    continue;
+                }
+                if (hostLockDirectory != null && HostDisplays.isLocked(hostLockDirectory, displayNumber)) {
+                    continue; // used by a build of another agent on this host
+                }
+                // Without host locks, a running server may belong to another agent or controller on this host.
+                if (!killOrphan(lock, hostLockDirectory != null)) {
+                    continue;
+                }
+                if (lock.delete() | new File(tmp, ".X11-unix/X" + displayNumber).delete()) {
+                    reaped.add(displayNumber);
+                }
+            }
+            return reaped;
+        }
+
+        /**
+         * Terminates the server owning a lock file, if it is still running and is a VNC server.
+         * @param mayKill whether the server is known to be nobody's, so that it may be killed if running
+         * @return true if the lock file may be deleted
+         */
+        private boolean killOrphan(File lock, boolean mayKill) throws IOException {
+            String pid = new String(Files.readAllBytes(lock.toPath()), StandardCharsets.US_ASCII).trim();
+            if (!pid.matches("\\d+") || !isAlive(pid)) {
+                return true;
+            }
+            if (!mayKill) {
+                return false;
+            }
+            String name = run("ps", "-p", pid, "-o", "comm=");
+            if (name == null || !VNC_SERVER.matcher(name).find()) {
+                return false; // some other X server, not ours to kill
+            }
+            run("kill", pid);
+            for (int i = 0; i < 10 && isAlive(pid); i++) {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException x) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return !isAlive(pid);
+        }
+
+        /**
+         * Whether a process may still be running: only <code>No such process</code> tells it is gone.
+         * One which cannot be signalled, as it belongs to another user, or about which nothing could be learnt in time, is assumed to run.
+         */
+        private boolean isAlive(String pid) throws IOException {
+            Map.Entry<Integer,String> result = exec("kill", "-0", pid);
+            return result == null || result.getKey() == 0 || !result.getValue().contains("No such process");
+        }
+
+        /**
+         * Runs a short command, as {@link #exec}.
+         * @return its output, or null if it failed
+         */
+        @CheckForNull
+        private String run(String... cmd) throws IOException {
+            Map.Entry<Integer,String> result = exec(cmd);
+            return result != null && result.getKey() == 0 ? result.getValue() : null;
+        }
+
+        /**
+         * Runs a short command in the C locale, killing it if it does not complete in time.
+         * @return its exit code and output, or null if it did not complete
+         */
+        @CheckForNull
+        private Map.Entry<Integer,String> exec(String... cmd) throws IOException {
+            ProcessBuilder pb = new ProcessBuilder(cmd).redirectErrorStream(true);
+            pb.environment().put("LC_ALL", "C");
+            Process p = pb.start();
+            try {
+                // Output is at most a line, which fits in the pipe buffer.
+                if (!p.waitFor(timeout, TimeUnit.SECONDS)) {
+                    p.destroyForcibly();
+                    return null;
+                }
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                try (InputStream in = p.getInputStream()) {
+                    byte[] buf = new byte[1024];
+                    int len;
+                    while ((len = in.read(buf)) > 0) {
+                        out.write(buf, 0, len);
+                    }
+                }
+                return new AbstractMap.SimpleImmutableEntry<Integer,String>(p.exitValue(), out.toString("UTF-8").trim());
+            } catch (InterruptedException x) {
+                p.destroyForcibly();
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+}
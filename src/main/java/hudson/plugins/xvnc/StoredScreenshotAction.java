@@ -0,0 +1,96 @@
+package hudson.plugins.xvnc;
+
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.listeners.RunListener;
+import hudson.security.Permission;
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.ServletException;
+import jenkins.model.RunAction2;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * The screenshot of a build kept in the {@link ScreenshotStore} rather than among its artifacts.
+ * The build holds a reference to the image, released when the build is deleted.
+ */
+public final class StoredScreenshotAction implements RunAction2 {
+
+    private static final Logger LOGGER = Logger.getLogger(StoredScreenshotAction.class.getName());
+
+    private final String hash;
+    private final String extension;
+    private final String ref;
+    private transient Run<?,?> run;
+
+    StoredScreenshotAction(String hash, String extension, String ref) {
+        this.hash = hash;
+        this.extension = extension;
+        this.ref = ref;
+    }
+
+    @Override
+    public void onAttached(Run<?,?> r) {
+        run = r;
+    }
+
+    @Override
+    public void onLoad(Run<?,?> r) {
+        run = r;
+    }
+
+    public Run<?,?> getRun() {
+        return run;
+    }
+
+    public Permission getRequiredPermission() {
+        return Run.ARTIFACTS;
+    }
+
+    public String getFileName() {
+        return "screenshot." + extension;
+    }
+
+    @Override
+    public String getIconFileName() {
+        return run != null && run.hasPermission(Run.ARTIFACTS) ? "monitor.png" : null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return Messages.Xvnc_SCREENSHOT();
+    }
+
+    @Override
+    public String getUrlName() {
+        return "screenshot";
+    }
+
+    public void doImage(StaplerRequest req, StaplerResponse rsp) throws IOException, ServletException {
+        run.checkPermission(Run.ARTIFACTS);
+        File image = ScreenshotStore.get().image(hash, extension);
+        if (!image.isFile()) {
+            rsp.sendError(StaplerResponse.SC_NOT_FOUND);
+            return;
+        }
+        rsp.serveFile(req, image.toURI().toURL());
+    }
+
+    @Extension
+    public static final class ReleaseOnDeletion extends RunListener<Run<?,?>> {
+
+        @Override
+        public void onDeleted(Run<?,?> r) {
+            for (StoredScreenshotAction action : r.getActions(StoredScreenshotAction.class)) {
+                try {
+                    ScreenshotStore.get().release(action.hash, action.extension, action.ref);
+                } catch (IOException x) {
+                    LOGGER.log(Level.WARNING, "Could not release the screenshot of " + r, x);
+                }
+            }
+        }
+    }
+}
@@ -5,6 +5,7 @@ import hudson.AbortException;
 import hudson.EnvVars;
 import hudson.Extension;
 import hudson.FilePath;
+import hudson.Functions;
 import hudson.Launcher;
 import hudson.Proc;
 import hudson.Util;
@@ -13,22 +14,33 @@ import hudson.model.Computer;
 import hudson.model.Node;
 import hudson.model.Run;
 import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
 import hudson.tasks.BuildWrapper;
 import hudson.tasks.BuildWrapperDescriptor;
 import hudson.util.FormValidation;
+import hudson.util.LogTaskListener;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.UUID;
-import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.annotation.CheckForNull;
 
 import jenkins.model.Jenkins;
 import jenkins.tasks.SimpleBuildWrapper;
 import jenkins.util.BuildListenerAdapter;
+import jenkins.util.Timer;
 import net.jcip.annotations.GuardedBy;
 import net.sf.json.JSONObject;
 import org.jenkinsci.Symbol;
@@ -44,7 +56,19 @@ import org.kohsuke.stapler.StaplerRequest;
  * @author Kohsuke Kawaguchi
  */
 public class Xvnc extends SimpleBuildWrapper {
+    private static final Logger LOGGER = Logger.getLogger(Xvnc.class.getName());
     private static final String XAUTHORITY_ENV = "XAUTHORITY";
+
+    /**
+     * Seconds after which setting up the display is given up, however many attempts are left.
+     */
+    static long SETUP_TIMEOUT = Long.getLong(Xvnc.class.getName() + ".setUpTimeout", 300);
+
+    /**
+     * Seconds a resumed build waits for its agent to come back online to reattach to its display.
+     */
+    static long RESUME_TIMEOUT = Long.getLong(Xvnc.class.getName() + ".resumeTimeout", 600);
+
     /**
      * Whether or not to take a screenshot upon completion of the build.
      */
@@ -54,7 +78,132 @@ public class Xvnc extends SimpleBuildWrapper {
     @DataBoundSetter
     public Boolean useXauthority = true;
 
-    private static final String FILENAME_SCREENSHOT = "screenshot.jpg";
+    /**
+     * Whether to watch the X server while the build runs and react when it dies.
+     */
+    @DataBoundSetter
+    public boolean watchServer;
+
+    /**
+     * How many times a dead X server is restarted on the same display before the build is aborted.
+     */
+    @DataBoundSetter
+    public int maxServerRestarts;
+
+    /**
+     * For which build results the screenshot is taken.
+     */
+    @DataBoundSetter
+    public ScreenshotPolicy screenshotPolicy = ScreenshotPolicy.ALWAYS;
+
+    /**
+     * Format of the archived screenshot.
+     */
+    @DataBoundSetter
+    public ScreenshotFormat screenshotFormat = ScreenshotFormat.JPEG;
+
+    /**
+     * Quality of lossy screenshot formats, from 1 to 100.
+     */
+    @DataBoundSetter
+    public int screenshotQuality = 90;
+
+    /**
+     * Resolution of the archived screenshot in percent of the display size.
+     */
+    @DataBoundSetter
+    public int screenshotScale = 100;
+
+    /**
+     * Size limit of the archived screenshot in bytes, or 0 for none.
+     */
+    @DataBoundSetter
+    public long screenshotMaxBytes;
+
+    /**
+     * Whether to record the display during the whole build.
+     */
+    @DataBoundSetter
+    public boolean recordSession;
+
+    /**
+     * Size limit of the session recording in bytes.
+     */
+    @DataBoundSetter
+    public long recordingMaxBytes = 100 * 1024 * 1024;
+
+    /**
+     * On how many displays X servers are started at once; the first one to come up is used.
+     */
+    @DataBoundSetter
+    public int parallelLaunches = 1;
+
+    /**
+     * Whether to start the X server only once an X client connects to the display.
+     */
+    @DataBoundSetter
+    public boolean lazyStart;
+
+    /**
+     * Whether to show the end of the X server output in the build log even if nothing went wrong.
+     */
+    @DataBoundSetter
+    public boolean verboseServerLog;
+
+    /**
+     * CPUs the X server may run on, as a list like <code>0-3,8</code>; empty for any.
+     */
+    @DataBoundSetter
+    public String serverCpus;
+
+    /**
+     * Niceness increment of the X server, or 0 to leave it.
+     */
+    @DataBoundSetter
+    public int serverNice;
+
+    /**
+     * Memory limit of the X server such as <code>512M</code>, applied through a cgroup; empty for none.
+     */
+    @DataBoundSetter
+    public String serverMemoryMax;
+
+    /**
+     * CPU time limit of the X server in percent of one CPU, applied through a cgroup; 0 for none.
+     */
+    @DataBoundSetter
+    public int serverCpuQuota;
+
+    /**
+     * Screen size such as <code>1280x1024</code>; empty for whatever the command line sets.
+     */
+    @DataBoundSetter
+    public String geometry;
+
+    /**
+     * Colour depth in bits; 0 for whatever the command line sets.
+     */
+    @DataBoundSetter
+    public int depth;
+
+    /**
+     * Screen resolution in dots per inch; 0 for whatever the command line sets.
+     */
+    @DataBoundSetter
+    public int dpi;
+
+    /**
+     * Whether the display can be watched from the build page while the build runs.
+     */
+    @DataBoundSetter
+    public boolean liveDisplay;
+
+    /**
+     * Whether the build may take screenshots whenever it wants, through {@link XvncScreenshotStep} or {@link ScreenshotQueue#ENV};
+     * off by default, as serving them keeps a thread busy on the agent and a timer on the controller for the whole build.
+     */
+    @DataBoundSetter
+    public boolean screenshotRequests;
 
     @DataBoundConstructor
     public Xvnc() {}
@@ -88,7 +237,7 @@ public class Xvnc extends SimpleBuildWrapper {
         }
 
         if (DESCRIPTOR.cleanUp) {
-            maybeCleanUp(launcher, listener, node);
+            StaleDisplayReaper.reapSoon(node);
         }
 
         String cmd = Util.nullify(DESCRIPTOR.xvnc);
@@ -97,37 +246,27 @@ public class Xvnc extends SimpleBuildWrapper {
         }
 
         workspace.mkdirs();
-        doSetUp(context, build, workspace, node, launcher, logger, cmd, 10, DESCRIPTOR.minDisplayNumber,
+        long start = System.currentTimeMillis();
+        doSetUp(context, build, workspace, node, launcher, listener, cmd, 10, DESCRIPTOR.minDisplayNumber,
                 DESCRIPTOR.maxDisplayNumber);
+        getAllocator(node).recordTiming("setUp", System.currentTimeMillis() - start);
     }
 
-    private void doSetUp(Context context, Run<?,?> build, FilePath workspace, Node node, final Launcher launcher, final PrintStream logger,
+    private void doSetUp(Context context, Run<?,?> build, FilePath workspace, Node node, final Launcher launcher, final TaskListener listener,
             String cmd, int retries, int minDisplayNumber, int maxDisplayNumber)
                     throws IOException, InterruptedException {
 
-        final DisplayAllocator allocator = getAllocator(node);
-        final int displayNumber = allocator.allocate(minDisplayNumber, maxDisplayNumber);
-
-        final String actualCmd = Util.replaceMacro(cmd, ImmutableMap.of(
-                "DISPLAY_NUMBER", String.valueOf(displayNumber),
-                "VNC_COMMAND", detectXvncCommand(workspace, launcher)
-        ));
-
-
-        logger.println(Messages.Xvnc_STARTING());
-
-        String[] cmds = Util.tokenize(actualCmd);
+        final PrintStream logger = listener.getLogger();
+        final String hostLockDirectory = hostLockDirectory();
+        final HostDisplays displays = new HostDisplays(getAllocator(node), workspace.getChannel(), hostLockDirectory);
+        final String vncCommand = detectXvncCommand(workspace, launcher);
 
         final FilePath xauthority;
         final Map<String,String> xauthorityEnv = new HashMap<String, String>();
         if (useXauthority) {
-            xauthority = createXauthorityFile(workspace, logger);            
+            xauthority = createXauthorityFile(workspace, logger);
             String xauthorityPath = xauthority.getRemote();
             xauthorityEnv.put(XAUTHORITY_ENV, xauthorityPath);
-            if (context.getEnv().containsKey(XAUTHORITY_ENV)) {
-                //We are probably doing a retry and context will complain if we try to set it again
-                context.getEnv().remove(XAUTHORITY_ENV);
-            }
             context.env(XAUTHORITY_ENV, xauthorityPath);
         } else {
             xauthority = null;
@@ -135,33 +274,335 @@ public class Xvnc extends SimpleBuildWrapper {
             xauthorityEnv.put("XVNC_COOKIE", UUID.randomUUID().toString());
         }
 
-        final Proc proc = launcher.launch().cmds(cmds).envs(xauthorityEnv).stdout(logger).pwd(workspace).start();
-        final String vncserverCommand;
-        if (cmds[0].endsWith("vncserver") && cmd.contains(":$DISPLAY_NUMBER")) {
-            // vncserver command starts the server in the background; -kill will stop it.
-            vncserverCommand = cmds[0];
-            int exit = proc.join();
+        final DisplayOptions displayOptions = new DisplayOptions(geometry, depth, dpi);
+        final String[] template = displayOptions.apply(Util.tokenize(Util.replaceMacro(cmd, ImmutableMap.of("VNC_COMMAND", vncCommand))));
+        final String program = template[0];
+        // vncserver command starts the server in the background; -kill will stop it.
+        final boolean background = program.endsWith("vncserver") && cmd.contains(":$DISPLAY_NUMBER");
+        // The server is started through a shell keeping its output on the agent, see ServerLog;
+        // if it cannot be found, fail every display like starting it directly would.
+        final boolean runnable = CommandRunner.run(launcher.launch().cmds("sh", "-c", "command -v \"$0\" >/dev/null", program).pwd(workspace),
+                "command -v " + program, CommandRunner.PROBE_TIMEOUT, listener) == 0;
+        final FilePath logDirectory = ServerLog.directory(workspace);
+        logDirectory.mkdirs();
+
+        final ServerLimits limits = new ServerLimits(serverCpus, serverNice, serverMemoryMax, serverCpuQuota);
+        boolean cgroup = false;
+        if (limits.needsCgroup()) {
+            String unavailable = "No cgroup available through 'systemd-run --user --scope'";
+            try {
+                ByteArrayOutputStream controllers = new ByteArrayOutputStream();
+                if (CommandRunner.run(launcher.launch().cmds(ServerLimits.cgroupProbe()).stdout(controllers).pwd(workspace),
+                        "systemd-run --user --scope", CommandRunner.PROBE_TIMEOUT, listener) == 0) {
+                    // A scope is created even if the controllers enforcing the limits are not delegated to the user.
+                    String missing = limits.missingControllers(controllers.toString("UTF-8"));
+                    cgroup = missing == null;
+                    unavailable = "Cgroup controllers not delegated to the user running the agent: " + missing;
+                }
+            } catch (IOException x) {
+                LOGGER.log(Level.FINE, "systemd-run not available", x);
+            }
+            if (!cgroup) {
+                logger.println("Warning: " + unavailable + "; memory and CPU quota limits are not applied");
+            }
+        }
+        if (!limits.isEmpty()) {
+            logger.println(Messages.Xvnc_SERVER_LIMITS(limits.describe(cgroup)));
+        }
+        long[] framebuffer = DisplayOptions.estimate(template);
+        logger.println(Messages.Xvnc_FRAMEBUFFER(framebuffer[0], framebuffer[1], framebuffer[2], Functions.humanReadableByteSize(framebuffer[3])));
+        if (lazyStart) {
+            if (watchServer || recordSession) {
+                logger.println("Watching or recording the display needs a running X server; starting it right away");
+            } else {
+                setUpLazily(context, build, workspace, launcher, listener, displays, node.getNodeName(), hostLockDirectory, cmd, vncCommand, runnable, retries, minDisplayNumber, maxDisplayNumber,
+                        xauthorityEnv, xauthority, background, logDirectory, displayOptions, limits, cgroup);
+                return;
+            }
+        }
+
+        logger.println(Messages.Xvnc_STARTING());
+        final int parallel = Math.max(1, parallelLaunches);
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(SETUP_TIMEOUT);
+        Candidate server = null;
+        for (int attempt = 0; server == null; attempt++) {
+            List<Candidate> candidates = new ArrayList<Candidate>();
+            for (int i = 0; i < parallel; i++) {
+                int displayNumber;
+                try {
+                    displayNumber = displays.allocate(minDisplayNumber, maxDisplayNumber, build.getExternalizableId());
+                } catch (RuntimeException x) {
+                    if (candidates.isEmpty()) {
+                        throw x;
+                    }
+                    break; // go with the candidates we have
+                }
+                String[] cmds = displayOptions.apply(Util.tokenize(Util.replaceMacro(cmd, ImmutableMap.of(
+                        "DISPLAY_NUMBER", String.valueOf(displayNumber),
+                        "VNC_COMMAND", vncCommand
+                ))));
+                Map<String,String> envs = new HashMap<String,String>(xauthorityEnv);
+                if (parallel > 1) {
+                    // So that losers can be killed without touching the winner.
+                    envs.put("XVNC_CANDIDATE", UUID.randomUUID().toString());
+                }
+                FilePath log = ServerLog.fileFor(logDirectory, displayNumber);
+                envs.put(ServerLog.ENV, log.getRemote());
+                candidates.add(new Candidate(displayNumber, cmds, limits.apply(cmds, cgroup), envs, log));
+            }
+            server = parallel > 1
+                    ? launchFirstReady(candidates, workspace, launcher, listener, displays, background, runnable, deadline)
+                    : launch(candidates.get(0), workspace, launcher, listener, displays, background, runnable);
+            if (server == null && (attempt >= retries || System.nanoTime() > deadline)) {
+                throw new IOException("Failed to start an X server after " + (attempt + 1) + " attempts" +
+                        "; consider checking the \"Clean up before start\" option");
+            }
+        }
+        final int displayNumber = server.displayNumber;
+        final String[] cmds = server.cmds;
+        final Proc proc = server.proc;
+        final String vncserverCommand = background ? cmds[0] : null;
+        final String serverLogId = server.log.act(new ServerLog.Start());
+
+        final String watchdogId;
+        if (watchServer) {
+            watchdogId = XvncWatchdog.start(build, workspace, launcher, listener, server.launchCmds, server.envs, displayNumber,
+                    background, vncserverCommand == null ? proc : null, maxServerRestarts);
+        } else {
+            watchdogId = null;
+        }
+
+        final String recordingId;
+        if (recordSession) {
+            recordingId = workspace.child(SessionRecording.FILENAME).act(new SessionRecording.Start(displayNumber, recordingMaxBytes));
+        } else {
+            recordingId = null;
+        }
+
+        if (liveDisplay) {
+            build.addAction(new LiveDisplayAction(node.getNodeName(), displayNumber));
+        }
+
+        final String screenshotsId = screenshotRequests ? startScreenshots(context, build, workspace, launcher, listener, displayNumber, ":" + displayNumber, xauthorityEnv) : null;
+
+        context.env("DISPLAY", ":" + displayNumber);
+        context.setDisposer(new DisposerImpl(displayNumber, xauthorityEnv, vncserverCommand, takeScreenshot, xauthority != null ? xauthority.getRemote() : null, watchdogId,
+                maxServerRestarts, screenshotEncoder(), screenshotPolicy, recordingId, null,
+                serverLogId, verboseServerLog, hostLockDirectory, screenshotsId, node.getNodeName(), build.getExternalizableId(),
+                server.launchCmds, server.envs));
+    }
+
+    /**
+     * Reserves a display and listens on it, leaving the start of the server to {@link LazyServer}.
+     */
+    private void setUpLazily(Context context, Run<?,?> build, FilePath workspace, Launcher launcher, TaskListener listener, HostDisplays displays,
+            String nodeName, @CheckForNull String hostLockDirectory, String cmd, String vncCommand, boolean runnable, int retries, int minDisplayNumber, int maxDisplayNumber,
+            Map<String,String> xauthorityEnv, @CheckForNull FilePath xauthority, boolean background, FilePath logDirectory,
+            DisplayOptions displayOptions, ServerLimits limits, boolean cgroup) throws IOException, InterruptedException {
+        if (xauthority == null) {
+            listener.getLogger().println("Warning: without an Xauthority file, any user of this machine can connect to the display over TCP once the X server is started");
+        }
+        for (int attempt = 0; ; attempt++) {
+            int displayNumber = displays.allocate(minDisplayNumber, maxDisplayNumber, build.getExternalizableId());
+            String[] cmds = displayOptions.apply(Util.tokenize(Util.replaceMacro(cmd, ImmutableMap.of(
+                    "DISPLAY_NUMBER", String.valueOf(displayNumber),
+                    "VNC_COMMAND", vncCommand
+            ))));
+            FilePath log = ServerLog.fileFor(logDirectory, displayNumber);
+            Map<String,String> envs = new HashMap<String,String>(xauthorityEnv);
+            envs.put(ServerLog.ENV, log.getRemote());
+            String lazyServerId;
+            try {
+                if (!runnable) {
+                    throw cannotRun(cmds[0]);
+                }
+                // vncserver writes a cookie of its own.
+                lazyServerId = workspace.act(new LazyServer.Listen(displayNumber, limits.apply(cmds, cgroup), envs,
+                        xauthority != null && !background ? xauthority.getRemote() : null, listener));
+            } catch (IOException x) {
+                listener.error(x.getMessage() + ", blacklisting display #" + displayNumber);
+                displays.blacklist(displayNumber);
+                if (attempt >= retries) {
+                    throw x;
+                }
+                continue;
+            }
+            listener.getLogger().println(Messages.Xvnc_WAITING_FOR_CLIENT(displayNumber));
+            String serverLogId = log.act(new ServerLog.Start());
+            // Clients have to connect over TCP, see LazyServer.
+            String display = "localhost:" + displayNumber;
+            String screenshotsId = screenshotRequests ? startScreenshots(context, build, workspace, launcher, listener, displayNumber, display, xauthorityEnv) : null;
+            context.env("DISPLAY", display);
+            context.setDisposer(new DisposerImpl(displayNumber, xauthorityEnv, background ? cmds[0] : null, takeScreenshot,
+                    xauthority != null ? xauthority.getRemote() : null, null, 0,
+                    screenshotEncoder(), screenshotPolicy, null, lazyServerId,
+                    serverLogId, verboseServerLog, hostLockDirectory, screenshotsId, nodeName, build.getExternalizableId(), null, null));
+            return;
+        }
+    }
+
+    private ScreenshotEncoder screenshotEncoder() {
+        return new ScreenshotEncoder(screenshotFormat, screenshotQuality, screenshotScale, screenshotMaxBytes);
+    }
+
+    /**
+     * Lets the build take screenshots whenever it wants, through {@link XvncScreenshotStep} or the script named by {@link ScreenshotQueue#ENV}.
+     * @return an identifier for {@link ScreenshotArchiver#stop}
+     */
+    private String startScreenshots(Context context, Run<?,?> build, FilePath workspace, Launcher launcher, TaskListener listener,
+            int displayNumber, String display, Map<String,String> xauthorityEnv) throws IOException, InterruptedException {
+        FilePath dir = ScreenshotQueue.directory(workspace, displayNumber);
+        dir.act(new ScreenshotQueue.Start(display, xauthorityEnv, screenshotEncoder()));
+        context.env(ScreenshotQueue.ENV, dir.child(ScreenshotQueue.SCRIPT).getRemote());
+        return ScreenshotArchiver.start(build, dir, launcher, listener);
+    }
+
+    /**
+     * An X server being started on some display.
+     */
+    private static final class Candidate {
+        final int displayNumber;
+        final String actualCmd;
+        final String[] cmds;
+        /**
+         * {@link #cmds} with {@link ServerLimits} applied.
+         */
+        final String[] launchCmds;
+        final Map<String,String> envs;
+        final FilePath log;
+        Proc proc;
+
+        Candidate(int displayNumber, String[] cmds, String[] launchCmds, Map<String,String> envs, FilePath log) {
+            this.displayNumber = displayNumber;
+            this.actualCmd = String.join(" ", cmds);
+            this.cmds = cmds;
+            this.launchCmds = launchCmds;
+            this.envs = envs;
+            this.log = log;
+        }
+    }
+
+    /**
+     * Starts a single server, the way it was always done: a server in the foreground is assumed to come up fine,
+     * a server started by <code>vncserver</code> is good if the command succeeds.
+     * @return the candidate, or null if it failed and was blacklisted
+     */
+    @CheckForNull
+    private static Candidate launch(Candidate candidate, FilePath workspace, Launcher launcher, TaskListener listener,
+            HostDisplays displays, boolean background, boolean runnable) throws IOException, InterruptedException {
+        try {
+            if (!runnable) {
+                throw cannotRun(candidate.cmds[0]);
+            }
+            candidate.proc = launcher.launch().cmds(ServerLog.redirect(candidate.launchCmds)).envs(candidate.envs).pwd(workspace).start();
+        } catch (IOException x) {
+            listener.error("Failed to run '" + candidate.actualCmd + "': " + x + ", blacklisting display #" + candidate.displayNumber);
+            displays.blacklist(candidate.displayNumber);
+            return null;
+        }
+        if (background) {
+            int exit = CommandRunner.join(candidate.proc, candidate.actualCmd, CommandRunner.START_TIMEOUT, listener);
             if (exit != 0) {
                 // XXX I18N
-                String message = "Failed to run '" + actualCmd + "' (exit code " + exit + "), blacklisting display #" + displayNumber +
-                        "; consider checking the \"Clean up before start\" option";
+                listener.error("Failed to run '" + candidate.actualCmd + "' (exit code " + exit + "), blacklisting display #" + candidate.displayNumber);
+                discardLog(candidate, listener);
                 // Do not release it; it may be "stuck" until cleaned up by an administrator.
-                //allocator.free(displayNumber);
-                allocator.blacklist(displayNumber);
-                if (retries > 0) {
-                    doSetUp(context, build, workspace, node, launcher, logger, cmd, retries - 1,
-                            minDisplayNumber, maxDisplayNumber);
-                    return;
-                } else {
-                    throw new IOException(message);
+                displays.blacklist(candidate.displayNumber);
+                return null;
+            }
+        }
+        return candidate;
+    }
+
+    /**
+     * Starts servers on several displays at once and keeps the first one which comes up.
+     * The others are stopped and their displays freed; displays on which the server failed are blacklisted.
+     * @return the winner, or null if none came up in time
+     */
+    @CheckForNull
+    private static Candidate launchFirstReady(List<Candidate> candidates, FilePath workspace, Launcher launcher, TaskListener listener,
+            HostDisplays displays, boolean background, boolean runnable, long deadline) throws IOException, InterruptedException {
+        List<Candidate> pending = new ArrayList<Candidate>();
+        for (Candidate candidate : candidates) {
+            try {
+                if (!runnable) {
+                    throw cannotRun(candidate.cmds[0]);
                 }
+                candidate.proc = launcher.launch().cmds(ServerLog.redirect(candidate.launchCmds)).envs(candidate.envs).pwd(workspace).start();
+                pending.add(candidate);
+            } catch (IOException x) {
+                listener.error("Failed to run '" + candidate.actualCmd + "': " + x);
+                displays.blacklist(candidate.displayNumber);
+            }
+        }
+        Candidate winner = null;
+        long startDeadline = Math.min(deadline, System.nanoTime() + TimeUnit.SECONDS.toNanos(CommandRunner.START_TIMEOUT));
+        try {
+            while (winner == null && !pending.isEmpty() && System.nanoTime() < startDeadline) {
+                for (Iterator<Candidate> it = pending.iterator(); winner == null && it.hasNext();) {
+                    Candidate candidate = it.next();
+                    boolean alive = candidate.proc.isAlive();
+                    if (background ? !alive && candidate.proc.join() == 0
+                            : alive && workspace.act(new DisplayProbe.StartedWith(candidate.displayNumber, candidate.envs))) {
+                        winner = candidate;
+                        it.remove();
+                    } else if (!alive) {
+                        listener.error("Failed to run '" + candidate.actualCmd + "', blacklisting display #" + candidate.displayNumber);
+                        discardLog(candidate, listener);
+                        displays.blacklist(candidate.displayNumber);
+                        it.remove();
+                    }
+                }
+                if (winner == null) {
+                    Thread.sleep(100);
+                }
+            }
+        } finally {
+            for (Candidate loser : pending) {
+                stopCandidate(loser, launcher, background);
+                discardLog(loser, null);
+                displays.free(loser.displayNumber);
             }
-        } else {
-            vncserverCommand = null;
         }
+        if (winner != null) {
+            listener.getLogger().println("Using display :" + winner.displayNumber + " out of " + candidates.size() + " candidates");
+        }
+        return winner;
+    }
 
-        context.env("DISPLAY", ":" + displayNumber);
-        context.setDisposer(new DisposerImpl(displayNumber, xauthorityEnv, vncserverCommand, takeScreenshot, xauthority != null ? xauthority.getRemote() : null));
+    /**
+     * The error for a server program which cannot be found on the agent, as if it had been started directly rather than through <code>sh</code>.
+     */
+    private static IOException cannotRun(String program) {
+        return new IOException("Cannot run program \"" + program + "\"");
+    }
+
+    /**
+     * Deletes the output of a server which is not used, showing it first if the server failed.
+     */
+    private static void discardLog(Candidate candidate, @CheckForNull TaskListener failed) throws InterruptedException {
+        if (failed != null) {
+            ServerLog.printTail(candidate.log, failed);
+        }
+        try {
+            candidate.log.delete();
+        } catch (IOException x) {
+            LOGGER.log(Level.FINE, "Could not delete " + candidate.log, x);
+        }
+    }
+
+    private static void stopCandidate(Candidate candidate, Launcher launcher, boolean background) throws InterruptedException {
+        try {
+            candidate.proc.kill();
+            if (background) {
+                CommandRunner.run(launcher.launch().cmds(candidate.cmds[0], "-kill", ":" + candidate.displayNumber).envs(candidate.envs),
+                        candidate.cmds[0] + " -kill :" + candidate.displayNumber, CommandRunner.STOP_TIMEOUT, launcher.getListener());
+            } else {
+                launcher.kill(candidate.envs);
+            }
+        } catch (IOException x) {
+            LOGGER.log(Level.FINE, "Could not stop server on display :" + candidate.displayNumber, x);
+        }
     }
 
     // vncserver was the default choice for years, distributions switching to systemd activation stopped supporting it.
@@ -169,14 +610,14 @@ public class Xvnc extends SimpleBuildWrapper {
     private String detectXvncCommand(FilePath workspace, Launcher launcher) throws InterruptedException {
 
         try {
-            launcher.launch().cmds("Xvnc", "-help").pwd(workspace).join();
+            CommandRunner.run(launcher.launch().cmds("Xvnc", "-help").pwd(workspace), "Xvnc -help", CommandRunner.PROBE_TIMEOUT, launcher.getListener());
             return "Xvnc";
         } catch (IOException exx) {
             // Fallback
         }
 
         try {
-            launcher.launch().cmds("vncserver", "-list").pwd(workspace).join();
+            CommandRunner.run(launcher.launch().cmds("vncserver", "-list").pwd(workspace), "vncserver -list", CommandRunner.PROBE_TIMEOUT, launcher.getListener());
             return "vncserver";
         } catch (IOException ex) {
             // Fallback
@@ -234,78 +675,246 @@ public class Xvnc extends SimpleBuildWrapper {
         private final boolean takeScreenshot;
         @CheckForNull
         private final String xauthorityPath;
+        /**
+         * Replaced by the watchdog started again when the build resumes.
+         */
+        @CheckForNull
+        private volatile String watchdogId;
+        private final int maxServerRestarts;
+        @CheckForNull
+        private final ScreenshotEncoder screenshotEncoder;
+        @CheckForNull
+        private final ScreenshotPolicy screenshotPolicy;
+        @CheckForNull
+        private final String recordingId;
+        @CheckForNull
+        private final String lazyServerId;
+        @CheckForNull
+        private volatile String serverLogId;
+        private final boolean verboseServerLog;
+        @CheckForNull
+        private final String hostLockDirectory;
+        @CheckForNull
+        private final String screenshotsId;
+        @CheckForNull
+        private final String nodeName;
+        @CheckForNull
+        private final String buildId;
+        /**
+         * How the server was started, to start it again if it is gone when the build resumes; null for a lazy server.
+         */
+        @CheckForNull
+        private final String[] launchCmds;
+        @CheckForNull
+        private final Map<String,String> launchEnvs;
+        private transient volatile boolean tornDown;
 
-        DisposerImpl(int displayNumber, Map<String,String> xauthorityEnv, @CheckForNull String vncserverCommand, boolean takeScreenshot, @CheckForNull String xauthorityPath) {
+        DisposerImpl(int displayNumber, Map<String,String> xauthorityEnv, @CheckForNull String vncserverCommand, boolean takeScreenshot, @CheckForNull String xauthorityPath, @CheckForNull String watchdogId,
+                int maxServerRestarts, ScreenshotEncoder screenshotEncoder, ScreenshotPolicy screenshotPolicy, @CheckForNull String recordingId,
+                @CheckForNull String lazyServerId, @CheckForNull String serverLogId, boolean verboseServerLog,
+                @CheckForNull String hostLockDirectory, @CheckForNull String screenshotsId, String nodeName, String buildId,
+                @CheckForNull String[] launchCmds, @CheckForNull Map<String,String> launchEnvs) {
             this.displayNumber = displayNumber;
             this.xauthorityEnv = xauthorityEnv;
             this.vncserverCommand = vncserverCommand;
             this.takeScreenshot = takeScreenshot;
             this.xauthorityPath = xauthorityPath;
+            this.watchdogId = watchdogId;
+            this.maxServerRestarts = maxServerRestarts;
+            this.screenshotEncoder = screenshotEncoder;
+            this.screenshotPolicy = screenshotPolicy;
+            this.recordingId = recordingId;
+            this.lazyServerId = lazyServerId;
+            this.serverLogId = serverLogId;
+            this.verboseServerLog = verboseServerLog;
+            this.hostLockDirectory = hostLockDirectory;
+            this.screenshotsId = screenshotsId;
+            this.nodeName = nodeName;
+            this.buildId = buildId;
+            this.launchCmds = launchCmds;
+            this.launchEnvs = launchEnvs;
+        }
+
+        /**
+         * Called when a pipeline resumes after a restart of Jenkins; reattaches to the display in the background.
+         */
+        private Object readResolve() {
+            if (nodeName != null && buildId != null) {
+                final long since = System.nanoTime();
+                Timer.get().schedule(() -> resume(since), 10, TimeUnit.SECONDS);
+            }
+            return this;
+        }
+
+        /**
+         * Marks the display as allocated again, and starts a new server on it if the server is gone,
+         * once the agent is back online and, with host locks, the display is locked again.
+         * The server is then watched again, if it was; as the build log cannot be reached from here,
+         * what the watchdog has to say goes to the system log, besides the build being aborted if the server dies for good.
+         */
+        private void resume(long since) {
+            if (tornDown) {
+                return;
+            }
+            Jenkins jenkins = Jenkins.getInstanceOrNull();
+            Node node = jenkins == null ? null : nodeName.isEmpty() ? jenkins : jenkins.getNode(nodeName);
+            VirtualChannel channel = node != null ? node.getChannel() : null;
+            if (channel == null) {
+                retryResume(since, nodeName + " is offline");
+                return;
+            }
+            try {
+                synchronized (this) {
+                    if (tornDown) {
+                        return;
+                    }
+                    getAllocator(node).reserve(displayNumber, buildId);
+                }
+                // The agent may have been restarted too, losing the lock, which another agent could take meanwhile.
+                if (hostLockDirectory != null && !channel.call(new HostDisplays.Reacquire(hostLockDirectory, displayNumber))) {
+                    // Possibly still held by the previous agent process, about to go away.
+                    retryResume(since, "another agent on the host holds it");
+                    return;
+                }
+                if (launchCmds == null || launchEnvs == null) {
+                    LOGGER.log(Level.INFO, "Reattached {0} to display :{1}", new Object[] {buildId, displayNumber});
+                    return;
+                }
+                TaskListener listener = new LogTaskListener(LOGGER, Level.WARNING);
+                // Decorators of the build's launcher, such as a container, were lost with the restart.
+                Launcher launcher = node.createLauncher(listener);
+                Proc proc = null;
+                if (channel.call(new DisplayProbe.Running(displayNumber))) {
+                    LOGGER.log(Level.INFO, "Reattached {0} to display :{1}", new Object[] {buildId, displayNumber});
+                } else {
+                    LOGGER.log(Level.WARNING, "The X server on display :{0} of {1} is gone; starting a new one on the node itself", new Object[] {displayNumber, buildId});
+                    if (serverLogId != null) {
+                        channel.call(new ServerLog.Stop(serverLogId, false));
+                    }
+                    Launcher.ProcStarter starter = launcher.launch().cmds(ServerLog.redirect(launchCmds)).envs(launchEnvs);
+                    if (vncserverCommand != null) {
+                        CommandRunner.run(starter, launchCmds[0], CommandRunner.START_TIMEOUT, listener);
+                    } else {
+                        proc = starter.start();
+                    }
+                    String log = launchEnvs.get(ServerLog.ENV);
+                    if (log != null) {
+                        serverLogId = new FilePath(channel, log).act(new ServerLog.Start());
+                    }
+                }
+                Run<?,?> build = watchdogId != null ? Run.fromExternalizableId(buildId) : null;
+                FilePath root = node.getRootPath();
+                if (build != null && root != null) {
+                    synchronized (this) {
+                        if (!tornDown) {
+                            watchdogId = XvncWatchdog.start(build, root, launcher, listener, launchCmds, launchEnvs, displayNumber,
+                                    vncserverCommand != null, proc, maxServerRestarts);
+                        }
+                    }
+                }
+            } catch (IOException | InterruptedException x) {
+                LOGGER.log(Level.WARNING, "Could not reattach " + buildId + " to display :" + displayNumber, x);
+            }
+        }
+
+        private void retryResume(long since, String reason) {
+            if (System.nanoTime() - since < TimeUnit.SECONDS.toNanos(RESUME_TIMEOUT)) {
+                Timer.get().schedule(() -> resume(since), 10, TimeUnit.SECONDS);
+            } else {
+                LOGGER.log(Level.WARNING, "Gave up reattaching {0} to display :{1} as {2}", new Object[] {buildId, displayNumber, reason});
+            }
         }
         
         @Override public void tearDown(Run<?,?> build, FilePath workspace, Launcher launcher, TaskListener listener) throws IOException, InterruptedException {
             PrintStream logger = listener.getLogger();
-            if (takeScreenshot) {
-                logger.println(Messages.Xvnc_TAKING_SCREENSHOT());
-                try {
-                    launcher.launch().cmds("echo", "$XAUTHORITY").envs(xauthorityEnv).stdout(logger).pwd(workspace).join();
-                    launcher.launch().cmds("ls", "-l", "$XAUTHORITY").envs(xauthorityEnv).stdout(logger).pwd(workspace).join();
-                    captureScreenshot(workspace, launcher, logger);
-                    build.getArtifactManager().archive(workspace, launcher, new BuildListenerAdapter(listener), Collections.singletonMap(FILENAME_SCREENSHOT, FILENAME_SCREENSHOT));
-                } catch (Exception x) {
-                    x.printStackTrace(logger);
-                }
+            long start = System.currentTimeMillis();
+            synchronized (this) {
+                tornDown = true;
+            }
+            XvncWatchdog.stop(watchdogId);
+            ScreenshotArchiver.stop(screenshotsId);
+            LiveDisplayAction liveDisplay = build.getAction(LiveDisplayAction.class);
+            if (liveDisplay != null) {
+                liveDisplay.close();
             }
-            logger.println(Messages.Xvnc_TERMINATING());
-            if (vncserverCommand != null) {
-                // #173: stopping the wrapper script will accomplish nothing. It has already exited, in fact.
-                launcher.launch().cmds(vncserverCommand, "-kill", ":" + displayNumber).envs(xauthorityEnv).stdout(logger).join();
+            Node node;
+            if (nodeName != null) {
+                Jenkins jenkins = Jenkins.getActiveInstance();
+                node = nodeName.isEmpty() ? jenkins : jenkins.getNode(nodeName);
             } else {
-                // Assume it can be shut down by being killed.
-                launcher.kill(xauthorityEnv);
+                // Disposers serialized by older versions do not know their node.
+                Computer c = workspace.toComputer();
+                node = c != null ? c.getNode() : null;
             }
-            Computer c = workspace.toComputer();
-            Node node = c != null ? c.getNode() : null;
             if (node == null) {
                 throw new AbortException("No node recognized for " + workspace);
             }
-            getAllocator(node).free(displayNumber);
-            if (xauthorityPath != null) {
-                final Computer computer = workspace.toComputer();
-                if (computer != null) {
-                    new FilePath(computer.getChannel(), xauthorityPath).delete();
+            ScreenshotEncoder screenshot = null;
+            // Disposers serialized by older versions have no policy.
+            if (takeScreenshot && (screenshotPolicy == null || screenshotPolicy.appliesTo(build.getResult()))) {
+                // Nor an encoder.
+                screenshot = screenshotEncoder != null ? screenshotEncoder : new ScreenshotEncoder(ScreenshotFormat.JPEG, 90, 100, 0);
+            }
+            // Everything on the agent is done in one call; whatever is to be archived ends up in this directory.
+            FilePath dir = ScreenshotQueue.directory(workspace, displayNumber);
+            boolean store = screenshot != null && Jenkins.getActiveInstance().getDescriptorByType(DescriptorImpl.class).screenshotStore;
+            DisplayCleanup.Result result = null;
+            DisplayAllocator allocator = getAllocator(node);
+            // Releases the lock on the host as well, whatever happens to the cleanup.
+            HostDisplays displays = new HostDisplays(allocator, workspace.getChannel(), hostLockDirectory);
+            try {
+                result = new DisplayCleanup(displayNumber, xauthorityEnv, vncserverCommand, screenshot, store, xauthorityPath,
+                        workspace.child(SessionRecording.FILENAME).getRemote(), recordingId, screenshotsId != null, lazyServerId, serverLogId,
+                        verboseServerLog, listener).perform(dir, launcher);
+            } finally {
+                if (result == null || result.stuck) {
+                    displays.blacklist(displayNumber);
+                } else {
+                    displays.free(displayNumber);
                 }
             }
-        }
-
-        // Use several means to capture screenshot, fail if none worked
-        private void captureScreenshot(FilePath workspace, Launcher launcher, PrintStream logger) throws IOException, InterruptedException {
-            String display = ":" + displayNumber;
-            String[][] commandSets = {
-                    { "import", "-window", "root", "-display", display, FILENAME_SCREENSHOT },
-                    { "gnome-screenshot", "--display", display, "--file", FILENAME_SCREENSHOT }
-            };
-
-            IOException err = null;
-            for (String[] commandSet : commandSets) {
+            boolean archived = true;
+            if (!result.artifacts.isEmpty()) {
                 try {
-                    launcher.launch().cmds(commandSet).envs(xauthorityEnv).stdout(logger).pwd(workspace).join();
-                    return;
-                } catch (InterruptedException ex) {
-                    throw ex;
-                } catch (Exception ex) {
-                    if (err == null) {
-                        err = new IOException("Failed to capture screenshot");
+                    build.getArtifactManager().archive(dir, launcher, new BuildListenerAdapter(listener), result.artifacts);
+                    if (result.recordingSize > 0) {
+                        logger.println(Messages.Xvnc_RECORDING_ARCHIVED(result.recordingSize));
                     }
-                    err.addSuppressed(ex);
+                } catch (IOException x) {
+                    archived = false;
+                    x.printStackTrace(logger);
                 }
             }
-
-            throw err;
+            // Screenshots may all have been archived in the background already, or all been duplicates.
+            int[] counts = result.screenshots;
+            if (counts != null && archived) {
+                logger.println(Messages.Xvnc_SCREENSHOTS_ARCHIVED(counts[0] - counts[1], counts[1], counts[2]));
+            }
+            if (result.screenshotHash != null) {
+                try {
+                    ScreenshotStore screenshots = ScreenshotStore.get();
+                    boolean known = screenshots.image(result.screenshotHash, screenshot.getExtension()).isFile();
+                    String ref = screenshots.add(result.screenshotHash, screenshot.getExtension(), dir.child(screenshot.getFileName()));
+                    build.addAction(new StoredScreenshotAction(result.screenshotHash, screenshot.getExtension(), ref));
+                    logger.println(known ? Messages.Xvnc_SCREENSHOT_REUSED() : Messages.Xvnc_SCREENSHOT_STORED());
+                } catch (IOException x) {
+                    x.printStackTrace(logger);
+                }
+            }
+            allocator.recordTiming("tearDown", System.currentTimeMillis() - start);
         }
     }
 
-    private static DisplayAllocator getAllocator(Node node) throws IOException {
+    /**
+     * Where display numbers are locked on agent hosts, if they are coordinated across agents.
+     */
+    @CheckForNull
+    static String hostLockDirectory() {
+        DescriptorImpl DESCRIPTOR = Jenkins.getActiveInstance().getDescriptorByType(DescriptorImpl.class);
+        return DESCRIPTOR.hostLocks ? Util.fixEmptyAndTrim(DESCRIPTOR.hostLockDirectory) : null;
+    }
+
+    static DisplayAllocator getAllocator(Node node) throws IOException {
         DescriptorImpl DESCRIPTOR = Jenkins.getActiveInstance().getDescriptorByType(DescriptorImpl.class);
         String name = node.getNodeName();
         synchronized (DESCRIPTOR) {
@@ -314,32 +923,12 @@ public class Xvnc extends SimpleBuildWrapper {
                 allocator = new DisplayAllocator();
                 allocator.owner = DESCRIPTOR;
                 DESCRIPTOR.allocators.put(name, allocator);
+                DESCRIPTOR.publishAllocators();
             }
             return allocator;
         }
     }
 
-    /**
-     * Whether {@link #maybeCleanUp} has already been run on a given node.
-     */
-    private static final Map<Node,Boolean> cleanedUpOn = new WeakHashMap<Node,Boolean>();
-
-    // XXX I18N
-    private static synchronized void maybeCleanUp(Launcher launcher, TaskListener listener, Node node) throws IOException, InterruptedException {
-        if (cleanedUpOn.put(node, true) != null) {
-            return;
-        }
-        if (!launcher.isUnix()) {
-            listener.error("Clean up not currently implemented for non-Unix nodes; skipping");
-            return;
-        }
-        PrintStream logger = listener.getLogger();
-        // ignore any error return codes
-        launcher.launch().stdout(logger).cmds("pkill", "Xvnc").join();
-        launcher.launch().stdout(logger).cmds("pkill", "Xrealvnc").join();
-        launcher.launch().stdout(logger).cmds("sh", "-c", "rm -f /tmp/.X*-lock /tmp/.X11-unix/X*").join();
-    }
-
     @Extension
     @Symbol("xvnc")
     public static final class DescriptorImpl extends BuildWrapperDescriptor {
@@ -367,14 +956,34 @@ public class Xvnc extends SimpleBuildWrapper {
         public boolean skipOnWindows = true;
 
         /**
-         * If true, try to clean up old processes and locks when first run.
+         * If true, periodically clean up processes and locks left behind by finished builds.
          */
         public boolean cleanUp = false;
 
+        /**
+         * If true, coordinate display numbers with other agents on the same host through lock files.
+         */
+        public boolean hostLocks = false;
+
+        /**
+         * If true, keep screenshots taken at the end of builds once per content rather than archiving them with each build.
+         */
+        public boolean screenshotStore = false;
+
+        /**
+         * Directory shared by all agents on a host holding the display locks.
+         */
+        public String hostLockDirectory = "/tmp/.xvnc-locks";
+
         // TODO this might cause excessive traffic in SaveableListener; really want a Jenkins API for a Saveable of nonversionable runtime state (cloud slaves, etc.)
         @GuardedBy("this") // load and save are synchronized
         private Map<String,DisplayAllocator> allocators;
 
+        /**
+         * Read-only copy of {@link #allocators}, replaced when a node is added, for readers which must not block builds.
+         */
+        private transient volatile Map<String,DisplayAllocator> allocatorsSnapshot = Collections.emptyMap();
+
         public DescriptorImpl() {
             super(Xvnc.class);
             load();
@@ -389,6 +998,25 @@ public class Xvnc extends SimpleBuildWrapper {
                     allocator.owner = this;
                 }
             }
+            publishAllocators();
+        }
+
+        synchronized void publishAllocators() {
+            allocatorsSnapshot = Collections.unmodifiableMap(new TreeMap<String,DisplayAllocator>(allocators));
+        }
+
+        /**
+         * Allocators by node name, without blocking.
+         */
+        Map<String,DisplayAllocator> getAllocators() {
+            return allocatorsSnapshot;
+        }
+
+        /**
+         * Names of the nodes on which displays have been allocated.
+         */
+        Set<String> getAllocatorNodeNames() {
+            return allocatorsSnapshot.keySet();
         }
 
         @Override
@@ -417,6 +1045,83 @@ public class Xvnc extends SimpleBuildWrapper {
             this.xvnc = value;
         }
 
+        public FormValidation doCheckScreenshotQuality(@QueryParameter String value) {
+            return validatePercentage(value);
+        }
+
+        public FormValidation doCheckScreenshotScale(@QueryParameter String value) {
+            return validatePercentage(value);
+        }
+
+        public FormValidation doCheckScreenshotMaxBytes(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        private static FormValidation validatePercentage(String value) {
+            FormValidation positive = FormValidation.validatePositiveInteger(value);
+            if (positive.kind != FormValidation.Kind.OK) {
+                return positive;
+            }
+            return Integer.parseInt(value) <= 100 ? FormValidation.ok() : FormValidation.error("Must be at most 100");
+        }
+
+        public FormValidation doCheckRecordingMaxBytes(@QueryParameter String value) {
+            return FormValidation.validatePositiveInteger(value);
+        }
+
+        public FormValidation doCheckParallelLaunches(@QueryParameter String value) {
+            return FormValidation.validatePositiveInteger(value);
+        }
+
+        public FormValidation doCheckGeometry(@QueryParameter String value) {
+            value = Util.fixEmptyAndTrim(value);
+            return value == null || DisplayOptions.GEOMETRY.matcher(value).matches()
+                    ? FormValidation.ok() : FormValidation.error("Must be a size such as 1280x1024");
+        }
+
+        public FormValidation doCheckDepth(@QueryParameter String value) {
+            FormValidation number = FormValidation.validateNonNegativeInteger(value);
+            if (number.kind != FormValidation.Kind.OK) {
+                return number;
+            }
+            int depth = Integer.parseInt(value);
+            return depth == 0 || DisplayOptions.DEPTHS.contains(depth)
+                    ? FormValidation.ok() : FormValidation.error("Must be one of " + DisplayOptions.DEPTHS);
+        }
+
+        public FormValidation doCheckDpi(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public FormValidation doCheckServerCpus(@QueryParameter String value) {
+            value = Util.fixEmptyAndTrim(value);
+            return value == null || ServerLimits.CPUS.matcher(value).matches()
+                    ? FormValidation.ok() : FormValidation.error("Must be a list of CPUs such as 0-3,8");
+        }
+
+        public FormValidation doCheckServerNice(@QueryParameter String value) {
+            try {
+                int nice = Integer.parseInt(value.trim());
+                return nice >= -20 && nice <= 19 ? FormValidation.ok() : FormValidation.error("Must be between -20 and 19");
+            } catch (NumberFormatException x) {
+                return FormValidation.error("Not a number");
+            }
+        }
+
+        public FormValidation doCheckServerMemoryMax(@QueryParameter String value) {
+            value = Util.fixEmptyAndTrim(value);
+            return value == null || ServerLimits.MEMORY.matcher(value).matches()
+                    ? FormValidation.ok() : FormValidation.error("Must be a size such as 512M");
+        }
+
+        public FormValidation doCheckServerCpuQuota(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public FormValidation doCheckMaxServerRestarts(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
         public FormValidation doCheckCommandline(@QueryParameter String value) {
             if (Util.nullify(value) == null || value.contains("$DISPLAY_NUMBER")) {
                 return FormValidation.ok();
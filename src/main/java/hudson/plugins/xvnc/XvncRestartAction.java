@@ -0,0 +1,29 @@
+package hudson.plugins.xvnc;
+
+import hudson.model.InvisibleAction;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Records how often the X server of a build had to be restarted by {@link XvncWatchdog}.
+ */
+@ExportedBean
+public class XvncRestartAction extends InvisibleAction {
+
+    private final int displayNumber;
+    volatile int restarts;
+
+    XvncRestartAction(int displayNumber) {
+        this.displayNumber = displayNumber;
+    }
+
+    @Exported
+    public int getDisplayNumber() {
+        return displayNumber;
+    }
+
+    @Exported
+    public int getRestarts() {
+        return restarts;
+    }
+}
@@ -0,0 +1,87 @@
+package hudson.plugins.xvnc;
+
+import com.google.common.collect.ImmutableSet;
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import java.util.Locale;
+import java.util.Set;
+import javax.annotation.CheckForNull;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.jenkinsci.plugins.workflow.steps.SynchronousNonBlockingStepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+/**
+ * Takes a screenshot of the display of the surrounding {@link Xvnc} wrapper right away,
+ * such as when a test fails. Screenshots are archived under <code>screenshots/</code> while the build runs.
+ * Returns whether a screenshot was taken; requests coming too fast, or too many of them, are skipped.
+ */
+public final class XvncScreenshotStep extends Step {
+
+    /**
+     * Part of the name of the archived screenshot.
+     */
+    @DataBoundSetter
+    public @CheckForNull String name;
+
+    @DataBoundConstructor
+    public XvncScreenshotStep() {}
+
+    @Override
+    public StepExecution start(StepContext context) throws Exception {
+        return new Execution(context, name);
+    }
+
+    private static final class Execution extends SynchronousNonBlockingStepExecution<Boolean> {
+
+        private static final long serialVersionUID = 1;
+
+        @CheckForNull
+        private final String name;
+
+        Execution(StepContext context, @CheckForNull String name) {
+            super(context);
+            this.name = name;
+        }
+
+        @Override
+        protected Boolean run() throws Exception {
+            FilePath workspace = getContext().get(FilePath.class);
+            String script = getContext().get(EnvVars.class).get(ScreenshotQueue.ENV);
+            if (script == null) {
+                throw new AbortException("xvncScreenshot must be called inside an Xvnc wrapper with screenshotRequests enabled");
+            }
+            ScreenshotQueue.Outcome outcome = new FilePath(workspace.getChannel(), script).getParent().act(new ScreenshotQueue.Take(name));
+            if (outcome != ScreenshotQueue.Outcome.TAKEN) {
+                getContext().get(TaskListener.class).getLogger().println(Messages.XvncScreenshotStep_SKIPPED(ScreenshotQueue.sanitize(name),
+                        outcome.name().toLowerCase(Locale.ENGLISH).replace('_', ' ')));
+            }
+            return outcome == ScreenshotQueue.Outcome.TAKEN;
+        }
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends StepDescriptor {
+
+        @Override
+        public String getFunctionName() {
+            return "xvncScreenshot";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return Messages.XvncScreenshotStep_DisplayName();
+        }
+
+        @Override
+        public Set<? extends Class<?>> getRequiredContext() {
+            return ImmutableSet.of(FilePath.class, EnvVars.class, TaskListener.class);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package hudson.plugins.xvnc;
+
+import hudson.Extension;
+import hudson.model.Api;
+import hudson.model.RootAction;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Exposes the display allocation state of every node at <code>/xvnc/api/json</code>.
+ * Reads only immutable snapshots, so polling it never blocks builds allocating displays.
+ */
+@Extension
+@ExportedBean
+public class XvncStatusAction implements RootAction {
+
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Xvnc";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "xvnc";
+    }
+
+    public Api getApi() {
+        Jenkins.getActiveInstance().checkPermission(Jenkins.SYSTEM_READ);
+        return new Api(this);
+    }
+
+    @Exported
+    public List<NodeStatus> getNodes() {
+        Xvnc.DescriptorImpl descriptor = Jenkins.getActiveInstance().getDescriptorByType(Xvnc.DescriptorImpl.class);
+        List<NodeStatus> nodes = new ArrayList<NodeStatus>();
+        for (Map.Entry<String,DisplayAllocator> entry : descriptor.getAllocators().entrySet()) {
+            nodes.add(new NodeStatus(entry.getKey(), descriptor.minDisplayNumber, descriptor.maxDisplayNumber,
+                    entry.getValue().getSnapshot()));
+        }
+        return nodes;
+    }
+
+    @ExportedBean(defaultVisibility = 2)
+    public static final class NodeStatus {
+
+        private final String name;
+        private final int minDisplayNumber;
+        private final int maxDisplayNumber;
+        private final DisplayAllocator.Snapshot snapshot;
+
+        NodeStatus(String name, int minDisplayNumber, int maxDisplayNumber, DisplayAllocator.Snapshot snapshot) {
+            this.name = name;
+            this.minDisplayNumber = minDisplayNumber;
+            this.maxDisplayNumber = maxDisplayNumber;
+            this.snapshot = snapshot;
+        }
+
+        /**
+         * Node name; empty for the built-in node.
+         */
+        @Exported
+        public String getName() {
+            return name;
+        }
+
+        @Exported
+        public int getMinDisplayNumber() {
+            return minDisplayNumber;
+        }
+
+        @Exported
+        public int getMaxDisplayNumber() {
+            return maxDisplayNumber;
+        }
+
+        /**
+         * Display numbers in the configured range which are neither allocated nor blacklisted.
+         */
+        @Exported
+        public int getFree() {
+            int free = 0;
+            for (int n = minDisplayNumber; n <= maxDisplayNumber; n++) {
+                if (!snapshot.getAllocated().contains(n) && !snapshot.getBlacklisted().contains(n)) {
+                    free++;
+                }
+            }
+            return free;
+        }
+
+        @Exported(inline = true)
+        public DisplayAllocator.Snapshot getState() {
+            return snapshot;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package hudson.plugins.xvnc;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.model.Executor;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import java.io.IOException;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import jenkins.model.CauseOfInterruption;
+import jenkins.util.Timer;
+import net.jcip.annotations.GuardedBy;
+
+/**
+ * Keeps an eye on the X server started for a build.
+ * If the server dies it is restarted on the same display, up to a limit,
+ * after which the build is aborted instead of running on with a dead <code>DISPLAY</code>.
+ */
+final class XvncWatchdog implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(XvncWatchdog.class.getName());
+
+    /**
+     * Seconds between two liveness checks; each check is a single cheap remote call.
+     */
+    static long INTERVAL = Long.getLong(XvncWatchdog.class.getName() + ".interval", 10);
+
+    private static final Map<String,XvncWatchdog> watchdogs = new ConcurrentHashMap<String,XvncWatchdog>();
+
+    private final Run<?,?> build;
+    private final FilePath workspace;
+    private final Launcher launcher;
+    private final TaskListener listener;
+    private final String[] cmds;
+    private final Map<String,String> envs;
+    private final int displayNumber;
+    private final boolean background;
+    private final int maxRestarts;
+
+    /**
+     * Handle of the server running in the foreground, or null when it was started by <code>vncserver</code>
+     * or the handle was lost with a restart of Jenkins.
+     */
+    @GuardedBy("this")
+    private @CheckForNull Proc proc;
+    @GuardedBy("this")
+    private int restarts;
+    @GuardedBy("this")
+    private boolean stopped;
+    private ScheduledFuture<?> task;
+
+    private XvncWatchdog(Run<?,?> build, FilePath workspace, Launcher launcher, TaskListener listener, String[] cmds,
+            Map<String,String> envs, int displayNumber, boolean background, @CheckForNull Proc proc, int maxRestarts) {
+        this.build = build;
+        this.workspace = workspace;
+        this.launcher = launcher;
+        this.listener = listener;
+        this.cmds = cmds;
+        this.envs = envs;
+        this.displayNumber = displayNumber;
+        this.background = background;
+        this.proc = proc;
+        this.maxRestarts = maxRestarts;
+    }
+
+    /**
+     * Starts watching a server; restarts already done for the build count against the limit.
+     * @param background whether the server daemonizes itself (<code>vncserver</code>)
+     * @param proc the server process, or null if it daemonized itself or is not known
+     * @return an identifier to pass to {@link #stop}
+     */
+    static String start(Run<?,?> build, FilePath workspace, Launcher launcher, TaskListener listener, String[] cmds,
+            Map<String,String> envs, int displayNumber, boolean background, @CheckForNull Proc proc, int maxRestarts) {
+        String id = UUID.randomUUID().toString();
+        XvncWatchdog watchdog = new XvncWatchdog(build, workspace, launcher, listener, cmds, envs, displayNumber, background, proc, maxRestarts);
+        XvncRestartAction action = build.getAction(XvncRestartAction.class);
+        if (action != null) {
+            watchdog.restarts = action.getRestarts();
+        }
+        watchdogs.put(id, watchdog);
+        watchdog.task = Timer.get().scheduleWithFixedDelay(watchdog, INTERVAL, INTERVAL, TimeUnit.SECONDS);
+        return id;
+    }
+
+    /**
+     * Stops watching, so that the server can be terminated without being taken for a crash.
+     * Does nothing if the watchdog is unknown, e.g. after a restart of Jenkins.
+     */
+    static void stop(@CheckForNull String id) {
+        if (id == null) {
+            return;
+        }
+        XvncWatchdog watchdog = watchdogs.remove(id);
+        if (watchdog != null) {
+            watchdog.cancel();
+        }
+    }
+
+    private synchronized void cancel() {
+        stopped = true;
+        if (task != null) {
+            task.cancel(false);
+        }
+    }
+
+    @Override
+    public synchronized void run() {
+        if (stopped) {
+            return;
+        }
+        try {
+            if (isAlive()) {
+                return;
+            }
+            String log = envs.get(ServerLog.ENV);
+            if (log != null) {
+                ServerLog.printTail(new FilePath(workspace.getChannel(), log), listener);
+            }
+            if (restarts < maxRestarts) {
+                restarts++;
+                listener.error(Messages.Xvnc_SERVER_RESTARTING(displayNumber, restarts, maxRestarts));
+                restart();
+                record();
+            } else {
+                listener.error(Messages.Xvnc_SERVER_DIED(displayNumber));
+                watchdogs.values().remove(this);
+                cancel();
+                Executor executor = build.getExecutor();
+                if (executor != null) {
+                    executor.interrupt(Result.FAILURE, new ServerDied(displayNumber));
+                }
+            }
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+        } catch (Exception x) {
+            // Typically the channel went away; the build will notice on its own.
+            LOGGER.log(Level.FINE, "Could not check X server on display :" + displayNumber + " for " + build, x);
+        }
+    }
+
+    private boolean isAlive() throws IOException, InterruptedException {
+        if (proc != null) {
+            return proc.isAlive();
+        }
+        // The socket of a killed server is left behind.
+        return workspace.act(new DisplayProbe.Running(displayNumber));
+    }
+
+    private void restart() throws IOException, InterruptedException {
+        Launcher.ProcStarter starter = launcher.launch().cmds(envs.containsKey(ServerLog.ENV) ? ServerLog.redirect(cmds) : cmds)
+                .envs(envs).stdout(listener).pwd(workspace);
+        if (background) {
+            int exit = CommandRunner.run(starter, cmds[0], CommandRunner.START_TIMEOUT, listener);
+            if (exit != 0) {
+                listener.error("Failed to restart '" + String.join(" ", cmds) + "' (exit code " + exit + ")");
+            }
+        } else {
+            proc = starter.start();
+        }
+    }
+
+    private void record() {
+        XvncRestartAction action = build.getAction(XvncRestartAction.class);
+        if (action == null) {
+            action = new XvncRestartAction(displayNumber);
+            build.addAction(action);
+        }
+        action.restarts = restarts;
+        try {
+            build.save();
+        } catch (IOException x) {
+            LOGGER.log(Level.WARNING, null, x);
+        }
+    }
+
+    /**
+     * Reason given when aborting a build whose X server died.
+     */
+    static final class ServerDied extends CauseOfInterruption {
+
+        private static final long serialVersionUID = 1;
+
+        private final int displayNumber;
+
+        ServerDied(int displayNumber) {
+            this.displayNumber = displayNumber;
+        }
+
+        @Override
+        public String getShortDescription() {
+            return Messages.Xvnc_SERVER_DIED(displayNumber);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+// Draws the messages described in LiveDisplay: resizes and rectangles of 32 bit B, G, R, unused pixels.
+(function () {
+    var canvas = document.getElementById('xvnc-live-display');
+    var status = document.getElementById('xvnc-live-display-status');
+    var context = canvas.getContext('2d');
+    var url = window.location.href.replace(/[?#].*$/, '').replace(/\/?$/, '/ws').replace(/^http/, 'ws');
+    var socket = new WebSocket(url);
+    socket.binaryType = 'arraybuffer';
+    socket.onopen = function () {
+        status.textContent = '';
+    };
+    socket.onmessage = function (event) {
+        var view = new DataView(event.data);
+        if (view.getUint8(0) === 0) {
+            canvas.width = view.getUint16(1);
+            canvas.height = view.getUint16(3);
+            return;
+        }
+        var x = view.getUint16(1), y = view.getUint16(3), w = view.getUint16(5), h = view.getUint16(7);
+        if (w === 0 || h === 0) {
+            return;
+        }
+        var src = new Uint8Array(event.data, 9);
+        var image = context.createImageData(w, h);
+        var dst = image.data;
+        for (var i = 0; i < dst.length; i += 4) {
+            dst[i] = src[i + 2];
+            dst[i + 1] = src[i + 1];
+            dst[i + 2] = src[i];
+            dst[i + 3] = 255;
+        }
+        context.putImageData(image, x, y);
+    };
+    socket.onclose = function () {
+        status.textContent = 'Disconnected';
+    };
+}());
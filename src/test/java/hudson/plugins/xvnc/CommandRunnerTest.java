@@ -0,0 +1,119 @@
+package hudson.plugins.xvnc;
+
+import hudson.Launcher;
+import hudson.model.TaskListener;
+import hudson.util.StreamTaskListener;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.LoggerRule;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class CommandRunnerTest {
+
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+    @Rule public LoggerRule logging = new LoggerRule().record(CommandRunner.class, Level.FINE).capture(10);
+
+    private final Launcher launcher = new Launcher.LocalLauncher(TaskListener.NULL);
+
+    @Before
+    public void unix() {
+        assumeTrue(new File("/bin/sh").canExecute());
+    }
+
+    @Test
+    public void returnsExitCodeAndLogsDuration() throws Exception {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        assertEquals(3, CommandRunner.run(launcher.launch().cmds("sh", "-c", "exit 3"), "exit 3", 30, new StreamTaskListener(log, StandardCharsets.UTF_8)));
+        assertThat(logging.getMessages(), hasItem(containsString("'exit 3' took")));
+        // Quick, so not worth telling the build about.
+        assertEquals("", log.toString("UTF-8"));
+    }
+
+    @Test
+    public void slowCommandIsShownInTheBuildLog() throws Exception {
+        long threshold = CommandRunner.SLOW_THRESHOLD;
+        CommandRunner.SLOW_THRESHOLD = 0;
+        try {
+            ByteArrayOutputStream log = new ByteArrayOutputStream();
+            assertEquals(0, CommandRunner.run(launcher.launch().cmds("true"), "true", 30, new StreamTaskListener(log, StandardCharsets.UTF_8)));
+            assertThat(log.toString("UTF-8"), containsString("'true' took"));
+        } finally {
+            CommandRunner.SLOW_THRESHOLD = threshold;
+        }
+    }
+
+    @Test
+    public void killsCommandAfterTimeout() throws Exception {
+        File pid = new File(tmp.getRoot(), "pid");
+        long start = System.nanoTime();
+        try {
+            CommandRunner.run(sleeper(pid), "sleep 60", 1, TaskListener.NULL);
+            fail();
+        } catch (IOException x) {
+            assertThat(x.getMessage(), containsString("did not complete within 1 seconds"));
+        }
+        assertThat(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), lessThan(30L));
+        awaitDeath(pid);
+    }
+
+    @Test
+    public void killsCommandWhenInterrupted() throws Exception {
+        final File pid = new File(tmp.getRoot(), "pid");
+        final AtomicReference<Throwable> thrown = new AtomicReference<Throwable>();
+        Thread waiter = new Thread(() -> {
+            try {
+                CommandRunner.run(sleeper(pid), "sleep 60", 60, TaskListener.NULL);
+            } catch (Throwable t) {
+                thrown.set(t);
+            }
+        });
+        waiter.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!pid.isFile() || pid.length() == 0) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("command did not start");
+            }
+            Thread.sleep(50);
+        }
+        waiter.interrupt();
+        waiter.join(TimeUnit.SECONDS.toMillis(10));
+        assertThat(thrown.get(), instanceOf(InterruptedException.class));
+        awaitDeath(pid);
+    }
+
+    /**
+     * A command sleeping for a minute, after writing its pid to a file.
+     */
+    private Launcher.ProcStarter sleeper(File pid) {
+        return launcher.launch().cmds("sh", "-c", "echo $$ > \"$0\"; exec sleep 60", pid.getAbsolutePath());
+    }
+
+    private static void awaitDeath(File pidFile) throws Exception {
+        String pid = new String(Files.readAllBytes(pidFile.toPath()), StandardCharsets.US_ASCII).trim();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (DisplayProbe.isAlive(pid)) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("process " + pid + " was not killed");
+            }
+            Thread.sleep(100);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package hudson.plugins.xvnc;
+
+import hudson.plugins.xvnc.Xvnc.DescriptorImpl;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Hammers the {@link DisplayAllocator} of a node from many threads while the descriptor saves it, and loads it back concurrently.
+ */
+public class DisplayAllocatorStressTest {
+
+    private static final int THREADS = 8;
+    private static final int ROUNDS = 300;
+    private static final int MIN = 10;
+    private static final int MAX = MIN + 2 * THREADS - 1;
+
+    @Rule public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void concurrentUseKeepsInvariants() throws Exception {
+        final DescriptorImpl descriptor = j.jenkins.getDescriptorByType(DescriptorImpl.class);
+        final DisplayAllocator allocator = Xvnc.getAllocator(j.jenkins);
+        assertSame(descriptor, allocator.owner);
+        final Set<Integer> held = Collections.newSetFromMap(new ConcurrentHashMap<Integer,Boolean>());
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < THREADS; i++) {
+            final int seed = i;
+            workers.add(new Thread(() -> {
+                Random random = new Random(seed);
+                String holder = "worker-" + seed;
+                try {
+                    start.await();
+                    for (int round = 0; round < ROUNDS; round++) {
+                        // Looked up by each build, as in setUp and tearDown.
+                        DisplayAllocator a = Xvnc.getAllocator(j.jenkins);
+                        if (a != allocator) {
+                            throw new AssertionError("allocator of the node replaced");
+                        }
+                        int n = a.allocate(MIN, MAX, holder);
+                        // The previous holder may have been handed back the number by the allocator and not yet forgotten it.
+                        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+                        while (!held.add(n)) {
+                            if (System.nanoTime() > deadline) {
+                                throw new AssertionError("display " + n + " allocated twice");
+                            }
+                            Thread.yield();
+                        }
+                        if (!a.getSnapshot().getAllocated().contains(n)) {
+                            throw new AssertionError("display " + n + " missing from the snapshot");
+                        }
+                        // Nobody else may have been given the number meanwhile.
+                        if (!holder.equals(holderOf(a, n))) {
+                            throw new AssertionError("display " + n + " allocated twice, lease held by " + holderOf(a, n));
+                        }
+                        if (random.nextInt(10) == 0) {
+                            a.blacklist(n);
+                            if (random.nextBoolean()) {
+                                a.unblacklist(n);
+                            }
+                        } else {
+                            a.free(n);
+                        }
+                        held.remove(n);
+                        if (random.nextInt(20) == 0) {
+                            a.recordTiming("stress", round);
+                        }
+                    }
+                } catch (Throwable t) {
+                    failures.add(t);
+                }
+            }, "allocator worker " + i));
+        }
+        Thread loader = new Thread(() -> {
+            try {
+                start.await();
+                while (!done.get()) {
+                    // Like Jenkins starting up, reading back whatever was saved last.
+                    DescriptorImpl loaded = new DescriptorImpl();
+                    DisplayAllocator a = loaded.getAllocators().get("");
+                    if (a != null) {
+                        if (a.owner != loaded) {
+                            throw new AssertionError("loaded allocator not bound to its descriptor");
+                        }
+                        for (int n : a.getSnapshot().getAllocated()) {
+                            if (n < MIN || n > MAX) {
+                                throw new AssertionError("display " + n + " out of range");
+                            }
+                        }
+                    }
+                    loads.incrementAndGet();
+                }
+            } catch (Throwable t) {
+                failures.add(t);
+            }
+        }, "allocator loader");
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        loader.start();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join(TimeUnit.MINUTES.toMillis(5));
+        }
+        done.set(true);
+        loader.join(TimeUnit.MINUTES.toMillis(1));
+        if (!failures.isEmpty()) {
+            AssertionError error = new AssertionError(failures.size() + " failures");
+            for (Throwable t : failures) {
+                error.addSuppressed(t);
+            }
+            throw error;
+        }
+        assertTrue(loads.get() > 0);
+        // Every display was freed or blacklisted, so none may be left allocated, live or saved.
+        assertEquals(Collections.emptySet(), allocator.getSnapshot().getAllocated());
+        assertEquals(0, allocator.getSnapshot().getLeases().size());
+        DisplayAllocator loaded = new DescriptorImpl().getAllocators().get("");
+        assertEquals(Collections.emptySet(), loaded.getSnapshot().getAllocated());
+        assertEquals(allocator.getSnapshot().getBlacklisted(), loaded.getSnapshot().getBlacklisted());
+    }
+
+    private static String holderOf(DisplayAllocator allocator, int n) {
+        for (DisplayAllocator.Lease lease : allocator.getSnapshot().getLeases()) {
+            if (lease.getDisplayNumber() == n) {
+                return lease.getHolder();
+            }
+        }
+        return null;
+    }
+}
@@ -101,4 +101,19 @@ public class DisplayAllocatorTest {
         assertArrayEquals(expected, displays);
     }
 
+    @Test
+    public void snapshotIsPublishedOnEveryChange() {
+        DisplayAllocator.Snapshot empty = allocator.getSnapshot();
+        int display = allocator.allocate(MIN, MAX, "job/1");
+        allocator.blacklist(MIN == display ? MAX : MIN);
+        DisplayAllocator.Snapshot snapshot = allocator.getSnapshot();
+        assertThat(empty.getAllocated().size(), equalTo(0));
+        assertThat(snapshot.getAllocated().contains(display), equalTo(true));
+        assertThat(snapshot.getBlacklisted().size(), equalTo(1));
+        assertThat(snapshot.getLeases().get(0).getHolder(), equalTo("job/1"));
+        allocator.free(display);
+        assertThat(allocator.getSnapshot().getAllocated().size(), equalTo(0));
+        assertThat(allocator.getSnapshot().getLeases().size(), equalTo(0));
+    }
+
 }
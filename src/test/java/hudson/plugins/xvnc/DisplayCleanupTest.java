@@ -0,0 +1,69 @@
+package hudson.plugins.xvnc;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.util.StreamTaskListener;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class DisplayCleanupTest {
+
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void stopsServerAndDeletesXauthority() throws Exception {
+        File xauthority = tmp.newFile();
+        File dir = new File(tmp.getRoot(), "cleanup");
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        StreamTaskListener listener = new StreamTaskListener(log, StandardCharsets.UTF_8);
+        DisplayCleanup.Result result = new DisplayCleanup(9989, Collections.singletonMap("XVNC_COOKIE", "test"), "true", null, false,
+                xauthority.getAbsolutePath(), null, null, false, null, null, false,
+                listener).perform(new FilePath(dir), new Launcher.LocalLauncher(listener));
+        assertFalse(result.stuck);
+        assertEquals(Collections.emptyMap(), result.artifacts);
+        assertFalse(xauthority.exists());
+        assertTrue(dir.isDirectory());
+        assertTrue(log.toString("UTF-8").contains(Messages.Xvnc_TERMINATING()));
+    }
+
+    @Test
+    public void stopsServerThroughTheLauncherOfTheBuild() throws Exception {
+        assumeTrue(new File("/bin/sh").canExecute());
+        File marker = new File(tmp.getRoot(), "decorated");
+        StreamTaskListener listener = new StreamTaskListener(new ByteArrayOutputStream(), StandardCharsets.UTF_8);
+        // Like a container or a wrapper set up by another plugin.
+        Launcher launcher = new Launcher.LocalLauncher(listener).decorateByPrefix("sh", "-c", "echo \"$*\" >> " + marker + "; exec \"$@\"", "sh");
+        DisplayCleanup.Result result = new DisplayCleanup(9989, Collections.singletonMap("XVNC_COOKIE", "test"), "true", null, false,
+                null, null, null, false, null, null, false,
+                listener).perform(new FilePath(tmp.newFolder("cleanup")), launcher);
+        assertFalse(result.stuck);
+        assertEquals(Collections.singletonList("true -kill :9989"), Files.readAllLines(marker.toPath()));
+    }
+
+    @Test
+    public void deletesWhatThePreviousCleanupLeft() throws Exception {
+        File dir = tmp.newFolder("cleanup");
+        File recording = new File(dir, SessionRecording.FILENAME);
+        assertTrue(recording.createNewFile());
+        File queued = new File(dir, ScreenshotQueue.OUT + "/0001-old.png");
+        assertTrue(queued.getParentFile().mkdir());
+        assertTrue(queued.createNewFile());
+        DisplayCleanup.Result result = new DisplayCleanup(9989, Collections.singletonMap("XVNC_COOKIE", "test"), "true", null, false,
+                null, null, null, false, null, null, false,
+                new StreamTaskListener(new ByteArrayOutputStream(), StandardCharsets.UTF_8)).invoke(dir, null);
+        assertEquals(Collections.emptyMap(), result.artifacts);
+        assertTrue(dir.isDirectory());
+        assertEquals(0, dir.list().length);
+    }
+}
@@ -0,0 +1,23 @@
+package hudson.plugins.xvnc;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class DisplayOptionsTest {
+
+    @Test
+    public void optionsReplaceThoseOfCommandLine() {
+        assertArrayEquals(new String[] {"Xvnc", ":12", "-localhost", "-geometry", "800x600", "-depth", "16"},
+                new DisplayOptions("800x600", 16, 0).apply(new String[] {"Xvnc", ":12", "-geometry", "1920x1200", "-localhost"}));
+        assertArrayEquals(new String[] {"Xvnc", ":12", "-geometry", "1920x1200", "-dpi", "96"},
+                new DisplayOptions("", 0, 96).apply(new String[] {"Xvnc", ":12", "-geometry", "1920x1200"}));
+    }
+
+    @Test
+    public void estimate() {
+        assertArrayEquals(new long[] {1024, 768, 24, 1024 * 768 * 4}, DisplayOptions.estimate(new String[] {"Xvnc", ":1"}));
+        assertArrayEquals(new long[] {800, 600, 16, 800 * 600 * 2},
+                DisplayOptions.estimate(new String[] {"Xvnc", ":1", "-geometry", "800x600", "-depth", "16"}));
+    }
+}
@@ -0,0 +1,86 @@
+package hudson.plugins.xvnc;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class DisplayProbeTest {
+
+    /**
+     * Unlikely to be used by a real server on the machine running the tests.
+     */
+    private static final int DISPLAY = 4711;
+
+    private Process process;
+
+    @Before
+    public void unix() {
+        assumeTrue(new File("/proc/self").isDirectory() && new File("/bin/sh").canExecute());
+        File socketDirectory = DisplayProbe.socketFile(DISPLAY).getParentFile();
+        assumeTrue(socketDirectory.mkdirs() || socketDirectory.canWrite());
+        assumeTrue(!DisplayProbe.lockFile(DISPLAY).exists() && !DisplayProbe.socketFile(DISPLAY).exists());
+    }
+
+    @After
+    public void cleanUp() throws Exception {
+        if (process != null) {
+            process.destroyForcibly().waitFor();
+        }
+        Files.deleteIfExists(DisplayProbe.lockFile(DISPLAY).toPath());
+        Files.deleteIfExists(DisplayProbe.socketFile(DISPLAY).toPath());
+    }
+
+    @Test
+    public void serverIsTheOneStartedWithTheCandidateEnvironment() throws Exception {
+        Map<String,String> mine = Collections.singletonMap("XVNC_CANDIDATE", "mine");
+        lock(spawn(mine));
+        // Not listening yet.
+        assertFalse(new DisplayProbe.StartedWith(DISPLAY, mine).call());
+        Files.createFile(DisplayProbe.socketFile(DISPLAY).toPath());
+        assertTrue(new DisplayProbe.StartedWith(DISPLAY, mine).call());
+        // Another candidate racing for the same display, or a server which is not ours.
+        assertFalse(new DisplayProbe.StartedWith(DISPLAY, Collections.singletonMap("XVNC_CANDIDATE", "other")).call());
+    }
+
+    @Test
+    public void leftoverSocketIsNotAServer() throws Exception {
+        Map<String,String> mine = Collections.singletonMap("XVNC_CANDIDATE", "mine");
+        Files.createFile(DisplayProbe.socketFile(DISPLAY).toPath());
+        assertFalse(new DisplayProbe.StartedWith(DISPLAY, mine).call());
+        String pid = spawn(mine);
+        lock(pid);
+        process.destroyForcibly().waitFor();
+        assertFalse(new DisplayProbe.StartedWith(DISPLAY, mine).call());
+    }
+
+    private void lock(String pid) throws IOException {
+        Files.write(DisplayProbe.lockFile(DISPLAY).toPath(), ("      " + pid + "\n").getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Starts a process sleeping for a while with some environment variables.
+     * @return its pid
+     */
+    private String spawn(Map<String,String> envs) throws IOException {
+        ProcessBuilder pb = new ProcessBuilder("sh", "-c", "echo $$; exec sleep 60");
+        pb.environment().putAll(envs);
+        process = pb.start();
+        BufferedReader r = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.US_ASCII));
+        String pid = r.readLine().trim();
+        assertEquals(pid, pid.replaceAll("\\D", ""));
+        return pid;
+    }
+}
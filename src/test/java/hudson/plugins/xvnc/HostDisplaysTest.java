@@ -0,0 +1,42 @@
+package hudson.plugins.xvnc;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HostDisplaysTest {
+
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void locksAreExclusive() throws Exception {
+        String dir = tmp.getRoot().getAbsolutePath() + "/locks";
+        Set<Integer> none = Collections.emptySet();
+        int first = new HostDisplays.Acquire(dir, 9990, 9991, none).call();
+        int second = new HostDisplays.Acquire(dir, 9990, 9991, none).call();
+        assertNotEquals(first, second);
+        assertEquals(-1, (int) new HostDisplays.Acquire(dir, 9990, 9991, none).call());
+        assertTrue(HostDisplays.isLocked(dir, first));
+        new HostDisplays.Release(dir, first).call();
+        assertFalse(HostDisplays.isLocked(dir, first));
+        assertEquals(first, (int) new HostDisplays.Acquire(dir, 9990, 9991, none).call());
+        new HostDisplays.Release(dir, first).call();
+        new HostDisplays.Release(dir, second).call();
+    }
+
+    @Test
+    public void unavailableDisplaysAreSkipped() throws Exception {
+        String dir = tmp.getRoot().getAbsolutePath();
+        int n = new HostDisplays.Acquire(dir, 9990, 9991, new HashSet<Integer>(Collections.singleton(9990))).call();
+        assertEquals(9991, n);
+        new HostDisplays.Release(dir, n).call();
+    }
+}
@@ -0,0 +1,122 @@
+package hudson.plugins.xvnc;
+
+import hudson.model.TaskListener;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.Matchers.hasItems;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class LazyServerTest {
+
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void tcpIsEnabled() {
+        assertArrayEquals(new String[] {"Xvnc", ":12", "-localhost", "-listen", "tcp"},
+                LazyServer.withTcp(new String[] {"Xvnc", ":12", "-localhost", "-nolisten", "tcp"}));
+        assertArrayEquals(new String[] {"Xvnc", ":12", "-nolisten", "unix", "-listen", "tcp"},
+                LazyServer.withTcp(new String[] {"Xvnc", ":12", "-nolisten", "unix"}));
+    }
+
+    @Test
+    public void cookieIsWrittenForAnyAddress() throws Exception {
+        File xauthority = tmp.newFile();
+        assertArrayEquals(new String[] {"Xvnc", ":12", "-auth", xauthority.getAbsolutePath()},
+                LazyServer.withCookie(new String[] {"Xvnc", ":12"}, xauthority, 12));
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(xauthority.toPath()))) {
+            assertEquals(0xFFFF, in.readUnsignedShort());
+            assertEquals("", field(in));
+            assertEquals("12", field(in));
+            assertEquals("MIT-MAGIC-COOKIE-1", field(in));
+            assertEquals(16, in.readUnsignedShort());
+            in.readFully(new byte[16]);
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    public void serverIsNotStartedWithoutClient() throws Exception {
+        int displayNumber = 80 + new Random().nextInt(20);
+        String id = new LazyServer.Listen(displayNumber, new String[] {"false"}, Collections.<String,String>emptyMap(), null, TaskListener.NULL)
+                .invoke(tmp.getRoot(), null);
+        assertFalse(new LazyServer.Stop(id).call());
+    }
+
+    @Test
+    public void firstClientIsHandedOverToTheServer() throws Exception {
+        int displayNumber = 80 + new Random().nextInt(20);
+        File xauthority = tmp.newFile();
+        String java = new File(System.getProperty("java.home"), "bin/java").getAbsolutePath();
+        String[] cmds = {java, "-cp", System.getProperty("java.class.path"), EchoServer.class.getName(), ":" + displayNumber, "-nolisten", "tcp"};
+        String id = new LazyServer.Listen(displayNumber, cmds, Collections.<String,String>emptyMap(), xauthority.getAbsolutePath(), TaskListener.NULL)
+                .invoke(tmp.getRoot(), null);
+        try (Socket client = new Socket(InetAddress.getLoopbackAddress(), 6000 + displayNumber)) {
+            client.setSoTimeout(60000);
+            OutputStream out = client.getOutputStream();
+            out.write("hello\n".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            // Written before the server started, and answered by it.
+            byte[] reply = new byte[6];
+            new DataInputStream(client.getInputStream()).readFully(reply);
+            assertEquals("hello\n", new String(reply, StandardCharsets.US_ASCII));
+        } finally {
+            assertTrue(new LazyServer.Stop(id).call());
+        }
+        List<String> args = Files.readAllLines(new File(tmp.getRoot(), EchoServer.ARGS).toPath());
+        assertThat(args, hasItems("-listen", "-auth", xauthority.getAbsolutePath()));
+        assertFalse(args.contains("-nolisten"));
+        assertTrue(xauthority.length() > 0);
+    }
+
+    private static String field(DataInputStream in) throws Exception {
+        byte[] field = new byte[in.readUnsignedShort()];
+        in.readFully(field);
+        return new String(field, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Stands for an X server: listens on the TCP port of the display given as first argument, and echoes what its client sends.
+     */
+    public static final class EchoServer {
+
+        static final String ARGS = "echo-server-args";
+
+        public static void main(String[] args) throws Exception {
+            Files.write(new File(ARGS).toPath(), Arrays.asList(args));
+            int displayNumber = Integer.parseInt(args[0].substring(1));
+            try (ServerSocket serverSocket = new ServerSocket()) {
+                serverSocket.setReuseAddress(true);
+                serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 6000 + displayNumber));
+                try (Socket socket = serverSocket.accept()) {
+                    InputStream in = socket.getInputStream();
+                    OutputStream out = socket.getOutputStream();
+                    int b;
+                    while ((b = in.read()) != -1) {
+                        out.write(b);
+                        out.flush();
+                    }
+                }
+            }
+        }
+    }
+}
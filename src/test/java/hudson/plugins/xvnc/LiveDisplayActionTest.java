@@ -0,0 +1,59 @@
+package hudson.plugins.xvnc;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Item;
+import java.net.URL;
+import jenkins.model.Jenkins;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.MockAuthorizationStrategy;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LiveDisplayActionTest {
+
+    @Rule public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void viewingNeedsWorkspacePermission() throws Exception {
+        j.jenkins.setSecurityRealm(j.createDummySecurityRealm());
+        j.jenkins.setAuthorizationStrategy(new MockAuthorizationStrategy()
+                .grant(Jenkins.READ, Item.READ).everywhere().to("reader", "developer")
+                .grant(Item.WORKSPACE).everywhere().to("developer"));
+        FreeStyleProject p = j.createFreeStyleProject();
+        FreeStyleBuild build = j.buildAndAssertSuccess(p);
+        LiveDisplayAction action = new LiveDisplayAction("", 5);
+        build.addAction(action);
+        String url = build.getUrl() + action.getUrlName() + "/ws";
+        URL root = j.getURL();
+        String origin = root.getProtocol() + "://" + root.getHost() + ":" + root.getPort();
+        JenkinsRule.WebClient reader = j.createWebClient().login("reader");
+        reader.addRequestHeader("Origin", origin);
+        reader.assertFails(url, 403);
+        JenkinsRule.WebClient developer = j.createWebClient().login("developer");
+        // Opened by some other site the developer is visiting, or without saying where from.
+        developer.assertFails(url, 403);
+        developer.addRequestHeader("Origin", "http://evil.example.com");
+        developer.assertFails(url, 403);
+        // Allowed, but there is nothing left to show.
+        developer.addRequestHeader("Origin", origin);
+        developer.assertFails(url, 404);
+        assertNull(action.getIconFileName());
+    }
+
+    @Test
+    public void sameOrigin() {
+        assertTrue(LiveDisplayAction.sameOrigin("https://ci.example.com", "https://ci.example.com/jenkins/"));
+        assertTrue(LiveDisplayAction.sameOrigin("https://CI.example.com:443", "https://ci.example.com/"));
+        assertTrue(LiveDisplayAction.sameOrigin("http://localhost:8080", "http://localhost:8080/jenkins/"));
+        assertFalse(LiveDisplayAction.sameOrigin(null, "https://ci.example.com/"));
+        assertFalse(LiveDisplayAction.sameOrigin("null", "https://ci.example.com/"));
+        assertFalse(LiveDisplayAction.sameOrigin("http://ci.example.com", "https://ci.example.com/"));
+        assertFalse(LiveDisplayAction.sameOrigin("https://ci.example.com.evil.org", "https://ci.example.com/"));
+        assertFalse(LiveDisplayAction.sameOrigin("http://localhost:8081", "http://localhost:8080/"));
+    }
+}
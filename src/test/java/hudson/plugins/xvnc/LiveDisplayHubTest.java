@@ -0,0 +1,318 @@
+package hudson.plugins.xvnc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LiveDisplayHubTest {
+
+    private static final int WIDTH = 10;
+    private static final int HEIGHT = 10;
+
+    private long bytesPerSecond;
+    private final FakeUpstream upstream = new FakeUpstream();
+    private final LiveDisplayHub hub = new LiveDisplayHub(7, upstream);
+
+    @Before
+    public void saveLimit() {
+        bytesPerSecond = LiveDisplayHub.VIEWER_BYTES_PER_SECOND;
+    }
+
+    @After
+    public void restoreLimit() {
+        LiveDisplayHub.VIEWER_BYTES_PER_SECOND = bytesPerSecond;
+    }
+
+    @Test
+    public void updatesAreFannedOutFromOneUpstream() throws Exception {
+        FakeViewer a = new FakeViewer(hub);
+        FakeViewer b = new FakeViewer(hub);
+        hub.add(a);
+        hub.add(b);
+        assertEquals(1, upstream.starts);
+        assertEquals(7, upstream.displayNumber);
+        byte[] resize = resize(WIDTH, HEIGHT);
+        byte[] rect = rectangle(1, 2, 3, 4, (byte) 5);
+        upstream.send(resize);
+        upstream.send(rect);
+        for (FakeViewer viewer : Arrays.asList(a, b)) {
+            assertEquals(2, viewer.sent.size());
+            assertArrayEquals(resize, viewer.sent.get(0));
+            assertArrayEquals(rect, viewer.sent.get(1));
+        }
+    }
+
+    @Test
+    public void messagesMaySpanWrites() throws Exception {
+        FakeViewer viewer = new FakeViewer(hub);
+        hub.add(viewer);
+        byte[] resize = resize(WIDTH, HEIGHT);
+        byte[] rect = rectangle(0, 0, 2, 2, (byte) 9);
+        byte[] stream = concat(frame(resize), frame(rect));
+        for (byte b : stream) {
+            upstream.sink.write(b);
+        }
+        assertEquals(2, viewer.sent.size());
+        assertArrayEquals(resize, viewer.sent.get(0));
+        assertArrayEquals(rect, viewer.sent.get(1));
+    }
+
+    @Test
+    public void lateViewerGetsTheWholeScreen() throws Exception {
+        hub.add(new FakeViewer(hub));
+        upstream.send(resize(WIDTH, HEIGHT));
+        upstream.send(rectangle(0, 0, WIDTH, HEIGHT, (byte) 1));
+        upstream.send(rectangle(2, 3, 1, 1, (byte) 2));
+        FakeViewer late = new FakeViewer(hub);
+        hub.add(late);
+        assertEquals(1, upstream.starts);
+        assertEquals(2, late.sent.size());
+        assertArrayEquals(resize(WIDTH, HEIGHT), late.sent.get(0));
+        byte[] full = late.sent.get(1);
+        assertArrayEquals(header(0, 0, WIDTH, HEIGHT), Arrays.copyOf(full, 9));
+        assertEquals(1, pixel(full, 0, 0));
+        assertEquals(2, pixel(full, 2, 3));
+        assertEquals(1, pixel(full, 3, 3));
+    }
+
+    @Test
+    public void screenIsKeptThroughManyUpdates() throws Exception {
+        hub.add(new FakeViewer(hub));
+        upstream.send(resize(WIDTH, HEIGHT));
+        upstream.send(rectangle(0, 0, WIDTH, HEIGHT, (byte) 1));
+        // More than the size of the screen, in small rectangles.
+        for (int x = 0; x < WIDTH; x++) {
+            for (int y = 0; y < HEIGHT; y += 2) {
+                upstream.send(rectangle(x, y, 1, 1, (byte) (10 + x)));
+            }
+        }
+        upstream.send(rectangle(9, 9, 1, 1, (byte) 7));
+        FakeViewer late = new FakeViewer(hub);
+        hub.add(late);
+        byte[] full = late.sent.get(1);
+        assertEquals(10, pixel(full, 0, 0));
+        assertEquals(1, pixel(full, 0, 1));
+        assertEquals(15, pixel(full, 5, 4));
+        assertEquals(7, pixel(full, 9, 9));
+        assertEquals(19, pixel(full, 9, 8));
+    }
+
+    @Test
+    public void viewerOverBudgetIsSentTheWholeScreenLater() throws Exception {
+        LiveDisplayHub.VIEWER_BYTES_PER_SECOND = 1000;
+        FakeViewer viewer = new FakeViewer(hub);
+        hub.add(viewer);
+        upstream.send(resize(WIDTH, HEIGHT));
+        // 409 bytes each: two fit in the budget, the third is dropped.
+        upstream.send(rectangle(0, 0, WIDTH, HEIGHT, (byte) 1));
+        upstream.send(rectangle(0, 0, WIDTH, HEIGHT, (byte) 2));
+        upstream.send(rectangle(0, 0, WIDTH, HEIGHT, (byte) 3));
+        assertEquals(3, viewer.sent.size());
+        // Still no budget for the whole screen.
+        upstream.send(rectangle(0, 0, 1, 1, (byte) 4));
+        assertEquals(3, viewer.sent.size());
+        Thread.sleep(500);
+        upstream.send(rectangle(1, 1, 1, 1, (byte) 5));
+        assertEquals(4, viewer.sent.size());
+        byte[] full = viewer.sent.get(3);
+        assertArrayEquals(header(0, 0, WIDTH, HEIGHT), Arrays.copyOf(full, 9));
+        assertEquals(4, pixel(full, 0, 0));
+        assertEquals(5, pixel(full, 1, 1));
+        assertEquals(3, pixel(full, 2, 2));
+        // Back to plain updates.
+        byte[] rect = rectangle(0, 0, 1, 1, (byte) 6);
+        upstream.send(rect);
+        assertEquals(5, viewer.sent.size());
+        assertArrayEquals(rect, viewer.sent.get(4));
+    }
+
+    @Test
+    public void resizeIsSentDespiteTheBudget() throws Exception {
+        LiveDisplayHub.VIEWER_BYTES_PER_SECOND = 100;
+        FakeViewer viewer = new FakeViewer(hub);
+        hub.add(viewer);
+        upstream.send(resize(WIDTH, HEIGHT));
+        // Larger than the whole budget, so sent on the full budget, leaving none.
+        upstream.send(rectangle(0, 0, WIDTH, HEIGHT, (byte) 1));
+        upstream.send(rectangle(0, 0, 1, 1, (byte) 2));
+        upstream.send(resize(5, 5));
+        assertEquals(3, viewer.sent.size());
+        assertArrayEquals(resize(5, 5), viewer.sent.get(2));
+    }
+
+    @Test
+    public void slowViewerHasAtMostSoManyMessagesInFlight() throws Exception {
+        FakeViewer viewer = new FakeViewer(hub);
+        viewer.pending = new ArrayList<CompletableFuture<Void>>();
+        hub.add(viewer);
+        upstream.send(resize(WIDTH, HEIGHT));
+        for (int i = 0; i < LiveDisplayHub.MAX_IN_FLIGHT * 2; i++) {
+            upstream.send(rectangle(0, 0, 1, 1, (byte) i));
+        }
+        assertEquals(LiveDisplayHub.MAX_IN_FLIGHT, viewer.sent.size());
+        for (CompletableFuture<Void> f : viewer.pending) {
+            f.complete(null);
+        }
+        upstream.send(rectangle(0, 0, 1, 1, (byte) 99));
+        assertEquals(LiveDisplayHub.MAX_IN_FLIGHT + 1, viewer.sent.size());
+        byte[] full = viewer.sent.get(LiveDisplayHub.MAX_IN_FLIGHT);
+        assertArrayEquals(header(0, 0, WIDTH, HEIGHT), Arrays.copyOf(full, 9));
+        assertEquals(99, pixel(full, 0, 0));
+    }
+
+    @Test
+    public void lastViewerLeavingStopsTheUpstream() throws Exception {
+        FakeViewer a = new FakeViewer(hub);
+        FakeViewer b = new FakeViewer(hub);
+        hub.add(a);
+        hub.add(b);
+        upstream.send(resize(WIDTH, HEIGHT));
+        hub.remove(a);
+        assertEquals(0, upstream.stops.size());
+        upstream.send(rectangle(0, 0, 1, 1, (byte) 1));
+        assertEquals(1, a.sent.size());
+        assertEquals(2, b.sent.size());
+        hub.remove(b);
+        assertEquals(Arrays.asList("upstream-1"), upstream.stops);
+        // Watching again follows the display anew.
+        FakeViewer c = new FakeViewer(hub);
+        hub.add(c);
+        assertEquals(2, upstream.starts);
+        assertEquals(0, c.sent.size());
+    }
+
+    @Test
+    public void stopDisconnectsEveryViewer() throws Exception {
+        FakeViewer a = new FakeViewer(hub);
+        FakeViewer b = new FakeViewer(hub);
+        hub.add(a);
+        hub.add(b);
+        hub.stop();
+        assertTrue(a.disconnected);
+        assertTrue(b.disconnected);
+        assertEquals(Arrays.asList("upstream-1"), upstream.stops);
+    }
+
+    @Test
+    public void closedUpstreamIsStartedAgain() throws Exception {
+        FakeViewer a = new FakeViewer(hub);
+        hub.add(a);
+        upstream.send(resize(WIDTH, HEIGHT));
+        upstream.sink.close();
+        FakeViewer b = new FakeViewer(hub);
+        hub.add(b);
+        assertEquals(2, upstream.starts);
+        assertFalse(a.disconnected);
+        hub.remove(a);
+        hub.remove(b);
+        assertEquals(Arrays.asList("upstream-2"), upstream.stops);
+        assertNull(upstream.failure);
+    }
+
+    private static final class FakeUpstream implements LiveDisplayHub.Upstream {
+
+        int starts;
+        int displayNumber;
+        OutputStream sink;
+        final List<String> stops = new ArrayList<String>();
+        AssertionError failure;
+
+        @Override
+        public String start(int displayNumber, OutputStream sink) {
+            starts++;
+            this.displayNumber = displayNumber;
+            this.sink = sink;
+            return "upstream-" + starts;
+        }
+
+        @Override
+        public void stop(String id) {
+            if (stops.contains(id)) {
+                failure = new AssertionError(id + " stopped twice");
+            }
+            stops.add(id);
+        }
+
+        void send(byte[] message) throws IOException {
+            sink.write(frame(message));
+        }
+    }
+
+    private static final class FakeViewer extends LiveDisplayHub.Viewer {
+
+        final List<byte[]> sent = new ArrayList<byte[]>();
+        /**
+         * When set, sends never complete until the test completes them.
+         */
+        List<CompletableFuture<Void>> pending;
+        boolean disconnected;
+
+        FakeViewer(LiveDisplayHub hub) {
+            hub.super();
+        }
+
+        @Override
+        Future<Void> send(ByteBuffer data) {
+            byte[] b = new byte[data.remaining()];
+            data.get(b);
+            sent.add(b);
+            if (pending == null) {
+                return CompletableFuture.completedFuture(null);
+            }
+            CompletableFuture<Void> f = new CompletableFuture<Void>();
+            pending.add(f);
+            return f;
+        }
+
+        @Override
+        void disconnect() {
+            disconnected = true;
+        }
+    }
+
+    private static byte[] resize(int width, int height) {
+        return ByteBuffer.allocate(5).put((byte) LiveDisplay.RESIZE).putShort((short) width).putShort((short) height).array();
+    }
+
+    private static byte[] header(int x, int y, int w, int h) {
+        return ByteBuffer.allocate(9).put((byte) LiveDisplay.RECTANGLE)
+                .putShort((short) x).putShort((short) y).putShort((short) w).putShort((short) h).array();
+    }
+
+    /**
+     * A rectangle of pixels all filled with one byte.
+     */
+    private static byte[] rectangle(int x, int y, int w, int h, byte fill) {
+        byte[] m = Arrays.copyOf(header(x, y, w, h), 9 + w * h * RfbClient.BYTES_PER_PIXEL);
+        Arrays.fill(m, 9, m.length, fill);
+        return m;
+    }
+
+    private static int pixel(byte[] fullFrame, int x, int y) {
+        return fullFrame[9 + (y * WIDTH + x) * RfbClient.BYTES_PER_PIXEL];
+    }
+
+    private static byte[] frame(byte[] message) {
+        return ByteBuffer.allocate(4 + message.length).putInt(message.length).put(message).array();
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] c = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, c, a.length, b.length);
+        return c;
+    }
+}
@@ -0,0 +1,21 @@
+package hudson.plugins.xvnc;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class RfbClientTest {
+
+    @Test
+    public void pauseKeepsToTheFrameInterval() {
+        assertEquals(100, RfbClient.pause(100, 1000, 0));
+        assertEquals(100, RfbClient.pause(100, 1000, 1000 * 1000));
+    }
+
+    @Test
+    public void pauseKeepsToTheBandwidth() {
+        // A full HD screen of 4 byte pixels at 4 MiB/s.
+        assertEquals(1977, RfbClient.pause(100, 1920 * 1080 * 4, 4 * 1024 * 1024));
+        assertEquals(0, RfbClient.pause(0, 0, 1000));
+    }
+}
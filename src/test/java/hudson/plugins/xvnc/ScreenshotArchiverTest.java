@@ -0,0 +1,48 @@
+package hudson.plugins.xvnc;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.FreeStyleBuild;
+import hudson.model.TaskListener;
+import java.io.File;
+import java.util.Arrays;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ScreenshotArchiverTest {
+
+    @Rule public JenkinsRule j = new JenkinsRule();
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void archivedScreenshotsAreRemoved() throws Exception {
+        FreeStyleBuild build = j.buildAndAssertSuccess(j.createFreeStyleProject());
+        Launcher launcher = j.jenkins.createLauncher(TaskListener.NULL);
+        File out = tmp.newFolder(ScreenshotQueue.OUT);
+        for (String name : Arrays.asList("0001-a.png", "0002-b.png", "0003-c.png.tmp")) {
+            new FilePath(new File(out, name)).write(name, "UTF-8");
+        }
+        assertEquals(2, ScreenshotArchiver.archive(build, new FilePath(out), launcher, TaskListener.NULL));
+        for (String name : Arrays.asList("0001-a.png", "0002-b.png")) {
+            assertTrue(build.getArtifactManager().root().child(ScreenshotArchiver.ARTIFACTS + "/" + name).isFile());
+        }
+        assertFalse(build.getArtifactManager().root().child(ScreenshotArchiver.ARTIFACTS + "/0003-c.png.tmp").exists());
+        // Only the one still being written is left, for the next batch.
+        assertArrayEquals(new String[] {"0003-c.png.tmp"}, out.list());
+        assertEquals(0, ScreenshotArchiver.archive(build, new FilePath(out), launcher, TaskListener.NULL));
+    }
+
+    @Test
+    public void missingDirectoryHasNothingToArchive() throws Exception {
+        FreeStyleBuild build = j.buildAndAssertSuccess(j.createFreeStyleProject());
+        FilePath out = new FilePath(new File(tmp.getRoot(), "missing"));
+        assertEquals(0, ScreenshotArchiver.archive(build, out, j.jenkins.createLauncher(TaskListener.NULL), TaskListener.NULL));
+    }
+}
@@ -0,0 +1,115 @@
+package hudson.plugins.xvnc;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import javax.imageio.ImageIO;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ScreenshotEncoderTest {
+
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void keepsSizeWithoutLimit() throws Exception {
+        for (ScreenshotFormat format : ScreenshotFormat.values()) {
+            BufferedImage decoded = decode(new ScreenshotEncoder(format, 90, 100, 0).encode(noise()));
+            assertEquals(format.name(), 400, decoded.getWidth());
+            assertEquals(format.name(), 300, decoded.getHeight());
+        }
+    }
+
+    @Test
+    public void scalesAsConfigured() throws Exception {
+        BufferedImage decoded = decode(new ScreenshotEncoder(ScreenshotFormat.PNG, 90, 50, 0).encode(noise()));
+        assertEquals(200, decoded.getWidth());
+        assertEquals(150, decoded.getHeight());
+    }
+
+    @Test
+    public void jpegLowersQualityBeforeSize() throws Exception {
+        long full = new ScreenshotEncoder(ScreenshotFormat.JPEG, 100, 100, 0).encode(noise()).length;
+        long lowest = new ScreenshotEncoder(ScreenshotFormat.JPEG, 30, 100, 0).encode(noise()).length;
+        assertThat(lowest, lessThan(full));
+        byte[] data = new ScreenshotEncoder(ScreenshotFormat.JPEG, 100, 100, lowest).encode(noise());
+        assertThat((long) data.length, lessThanOrEqualTo(lowest));
+        // Quality alone was enough.
+        assertEquals(400, decode(data).getWidth());
+    }
+
+    @Test
+    public void jpegShrinksOnceQualityIsAtItsMinimum() throws Exception {
+        long lowest = new ScreenshotEncoder(ScreenshotFormat.JPEG, 30, 100, 0).encode(noise()).length;
+        byte[] data = new ScreenshotEncoder(ScreenshotFormat.JPEG, 90, 100, lowest / 2).encode(noise());
+        assertThat((long) data.length, lessThanOrEqualTo(lowest / 2));
+        assertThat(decode(data).getWidth(), lessThan(400));
+    }
+
+    @Test
+    public void pngShrinksToFit() throws Exception {
+        long full = new ScreenshotEncoder(ScreenshotFormat.PNG, 90, 100, 0).encode(noise()).length;
+        byte[] data = new ScreenshotEncoder(ScreenshotFormat.PNG, 90, 100, full / 4).encode(noise());
+        assertThat((long) data.length, lessThanOrEqualTo(full / 4));
+        BufferedImage decoded = decode(data);
+        assertThat(decoded.getWidth(), lessThan(400));
+        assertThat(decoded.getHeight(), lessThan(300));
+    }
+
+    @Test
+    public void failsWhenTheImageCannotFit() throws Exception {
+        for (ScreenshotFormat format : ScreenshotFormat.values()) {
+            try {
+                new ScreenshotEncoder(format, 90, 100, 10).encode(noise());
+                fail(format.name());
+            } catch (IOException x) {
+                assertThat(x.getMessage(), containsString("does not fit in 10 bytes"));
+            }
+        }
+    }
+
+    @Test
+    public void writesEncodedFileAndDeletesRaw() throws Exception {
+        File raw = tmp.newFile("raw.png");
+        assertTrue(ImageIO.write(noise(), "png", raw));
+        ScreenshotEncoder encoder = new ScreenshotEncoder(ScreenshotFormat.JPEG, 80, 100, 0);
+        long size = encoder.invoke(raw, null);
+        File encoded = new File(tmp.getRoot(), encoder.getFileName());
+        assertEquals(size, Files.size(encoded.toPath()));
+        assertEquals(400, ImageIO.read(encoded).getWidth());
+        assertFalse(raw.exists());
+    }
+
+    /**
+     * An image which compresses badly, so that the size limit matters.
+     */
+    private static BufferedImage noise() {
+        BufferedImage image = new BufferedImage(400, 300, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(42);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, random.nextInt(0x1000000));
+            }
+        }
+        return image;
+    }
+
+    private static BufferedImage decode(byte[] data) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(data));
+        assertTrue(image != null);
+        return image;
+    }
+}
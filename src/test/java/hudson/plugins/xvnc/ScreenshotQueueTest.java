@@ -0,0 +1,162 @@
+package hudson.plugins.xvnc;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import javax.imageio.ImageIO;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ScreenshotQueueTest {
+
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    private long minInterval;
+    private long maxCaptures;
+
+    @Before
+    public void saveLimits() {
+        minInterval = ScreenshotQueue.MIN_INTERVAL;
+        maxCaptures = ScreenshotQueue.MAX_CAPTURES;
+    }
+
+    @After
+    public void restoreLimits() {
+        ScreenshotQueue.MIN_INTERVAL = minInterval;
+        ScreenshotQueue.MAX_CAPTURES = maxCaptures;
+    }
+
+    @Test
+    public void sanitize() {
+        assertEquals("screenshot", ScreenshotQueue.sanitize(null));
+        assertEquals("screenshot", ScreenshotQueue.sanitize("  "));
+        assertEquals("LoginTest.testLogin_1_", ScreenshotQueue.sanitize("LoginTest.testLogin[1]"));
+        assertEquals("a_b", ScreenshotQueue.sanitize("a//b"));
+    }
+
+    @Test
+    public void identicalImagesHaveTheSameHash() {
+        BufferedImage a = new BufferedImage(4, 3, BufferedImage.TYPE_INT_RGB);
+        BufferedImage b = new BufferedImage(4, 3, BufferedImage.TYPE_INT_RGB);
+        assertArrayEquals(ScreenshotQueue.hash(a), ScreenshotQueue.hash(b));
+        b.setRGB(3, 2, 0xFFFFFF);
+        assertFalse(Arrays.equals(ScreenshotQueue.hash(a), ScreenshotQueue.hash(b)));
+        assertFalse(Arrays.equals(ScreenshotQueue.hash(a), ScreenshotQueue.hash(new BufferedImage(3, 4, BufferedImage.TYPE_INT_RGB))));
+    }
+
+    @Test
+    public void requestsComingTooFastAreThrottled() throws Exception {
+        ScreenshotQueue.MIN_INTERVAL = 60000;
+        FakeQueue queue = queue(image(0), image(1));
+        assertEquals(ScreenshotQueue.Outcome.TAKEN, queue.take("first"));
+        assertEquals(ScreenshotQueue.Outcome.THROTTLED, queue.take("second"));
+        assertArrayEquals(new int[] {1, 0, 1}, queue.stop());
+        assertArrayEquals(new String[] {"0001-first.png"}, out().list());
+    }
+
+    @Test
+    public void capturesAreLimited() throws Exception {
+        ScreenshotQueue.MIN_INTERVAL = 0;
+        ScreenshotQueue.MAX_CAPTURES = 2;
+        FakeQueue queue = queue(image(0), image(1), image(2));
+        assertEquals(ScreenshotQueue.Outcome.TAKEN, queue.take(null));
+        assertEquals(ScreenshotQueue.Outcome.TAKEN, queue.take(null));
+        assertEquals(ScreenshotQueue.Outcome.LIMIT_REACHED, queue.take(null));
+        assertArrayEquals(new int[] {2, 0, 1}, queue.stop());
+        String[] files = out().list();
+        Arrays.sort(files);
+        assertArrayEquals(new String[] {"0001-screenshot.png", "0002-screenshot.png"}, files);
+    }
+
+    @Test
+    public void consecutiveDuplicatesAreDropped() throws Exception {
+        ScreenshotQueue.MIN_INTERVAL = 0;
+        FakeQueue queue = queue(image(0), image(0), image(1), image(0));
+        for (int i = 0; i < 4; i++) {
+            assertEquals(ScreenshotQueue.Outcome.TAKEN, queue.take("s"));
+        }
+        assertArrayEquals(new int[] {4, 1, 0}, queue.stop());
+        String[] files = out().list();
+        Arrays.sort(files);
+        // The last one is the same as the first, but not as the one right before.
+        assertArrayEquals(new String[] {"0001-s.png", "0003-s.png", "0004-s.png"}, files);
+        // Raw grabs are deleted once encoded.
+        assertArrayEquals(new String[] {"out"}, tmp.getRoot().list());
+    }
+
+    @Test
+    public void failedGrabsAreNotCounted() throws Exception {
+        FakeQueue queue = queue();
+        assertEquals(ScreenshotQueue.Outcome.FAILED, queue.take(null));
+        assertArrayEquals(new int[] {0, 0, 0}, queue.stop());
+        assertEquals(ScreenshotQueue.Outcome.FAILED, queue.take(null));
+    }
+
+    @Test
+    public void startClearsScreenshotsOfPreviousBuilds() throws Exception {
+        File old = new File(tmp.newFolder(ScreenshotQueue.OUT), "0001-old.png");
+        assertTrue(old.createNewFile());
+        new ScreenshotQueue.Start(":0", Collections.<String,String>emptyMap(), new ScreenshotEncoder(ScreenshotFormat.PNG, 90, 100, 0))
+                .invoke(tmp.getRoot(), null);
+        try {
+            assertFalse(old.exists());
+            assertTrue(new File(tmp.getRoot(), ScreenshotQueue.SCRIPT).canExecute());
+        } finally {
+            new ScreenshotQueue.Stop().invoke(tmp.getRoot(), null);
+        }
+    }
+
+    private File out() {
+        return new File(tmp.getRoot(), ScreenshotQueue.OUT);
+    }
+
+    private FakeQueue queue(BufferedImage... grabs) throws IOException {
+        tmp.newFolder(ScreenshotQueue.OUT);
+        return new FakeQueue(tmp.getRoot(), grabs);
+    }
+
+    private static BufferedImage image(int rgb) {
+        BufferedImage image = new BufferedImage(4, 3, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, rgb);
+        return image;
+    }
+
+    /**
+     * Grabs the given images in turn rather than the display, then fails.
+     */
+    private static final class FakeQueue extends ScreenshotQueue {
+
+        private final Deque<BufferedImage> grabs;
+
+        FakeQueue(File dir, BufferedImage... grabs) {
+            super(dir, ":0", Collections.<String,String>emptyMap(), new ScreenshotEncoder(ScreenshotFormat.PNG, 90, 100, 0));
+            this.grabs = new ArrayDeque<BufferedImage>(Arrays.asList(grabs));
+        }
+
+        @Override
+        boolean grab(File raw) {
+            BufferedImage image = grabs.poll();
+            if (image == null) {
+                return false;
+            }
+            try {
+                return ImageIO.write(image, "png", raw);
+            } catch (IOException x) {
+                throw new UncheckedIOException(x);
+            }
+        }
+    }
+}
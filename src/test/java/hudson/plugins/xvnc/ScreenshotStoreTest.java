@@ -0,0 +1,58 @@
+package hudson.plugins.xvnc;
+
+import hudson.FilePath;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ScreenshotStoreTest {
+
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void identicalImagesAreStoredOnce() throws Exception {
+        ScreenshotStore store = new ScreenshotStore(tmp.newFolder("store"));
+        File source = tmp.newFile("screenshot.png");
+        Files.write(source.toPath(), "pixels".getBytes(StandardCharsets.US_ASCII));
+        String hash = ScreenshotStore.sha256(new ByteArrayInputStream("pixels".getBytes(StandardCharsets.US_ASCII)));
+        String first = store.add(hash, "png", new FilePath(source));
+        assertTrue(source.delete());
+        // Not transferred again, so the source need not exist.
+        String second = store.add(hash, "png", new FilePath(source));
+        assertNotEquals(first, second);
+        File image = store.image(hash, "png");
+        assertEquals("pixels", new String(Files.readAllBytes(image.toPath()), StandardCharsets.US_ASCII));
+        store.release(hash, "png", first);
+        assertTrue(image.isFile());
+        store.release(hash, "png", second);
+        assertFalse(image.exists());
+    }
+
+    @Test
+    public void mismatchedHashIsRejected() throws Exception {
+        ScreenshotStore store = new ScreenshotStore(tmp.newFolder("store"));
+        File source = tmp.newFile("screenshot.png");
+        Files.write(source.toPath(), "pixels".getBytes(StandardCharsets.US_ASCII));
+        String hash = ScreenshotStore.sha256(new ByteArrayInputStream("other".getBytes(StandardCharsets.US_ASCII)));
+        try {
+            store.add(hash, "png", new FilePath(source));
+            fail();
+        } catch (IOException x) {
+            // expected
+        }
+        assertFalse(store.image(hash, "png").exists());
+        String[] left = store.image(hash, "png").getParentFile().list();
+        assertEquals(0, left == null ? 0 : left.length);
+    }
+}
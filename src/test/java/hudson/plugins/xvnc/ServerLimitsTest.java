@@ -0,0 +1,43 @@
+package hudson.plugins.xvnc;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ServerLimitsTest {
+
+    private static final String[] XVNC = {"Xvnc", ":12"};
+
+    @Test
+    public void noLimits() {
+        ServerLimits limits = new ServerLimits("", 0, null, 0);
+        assertTrue(limits.isEmpty());
+        assertArrayEquals(XVNC, limits.apply(XVNC, true));
+    }
+
+    @Test
+    public void allLimits() {
+        ServerLimits limits = new ServerLimits("0-1", 10, "512M", 50);
+        assertArrayEquals(new String[] {"systemd-run", "--user", "--scope", "--quiet", "-p", "MemoryMax=512M", "-p", "CPUQuota=50%",
+                "taskset", "-c", "0-1", "nice", "-n", "10", "Xvnc", ":12"}, limits.apply(XVNC, true));
+        assertEquals("CPUs 0-1, nice 10, memory 512M, CPU quota 50%", limits.describe(true));
+    }
+
+    @Test
+    public void cgroupLimitsNeedCgroup() {
+        ServerLimits limits = new ServerLimits(null, 5, "1G", 0);
+        assertArrayEquals(new String[] {"nice", "-n", "5", "Xvnc", ":12"}, limits.apply(XVNC, false));
+        assertEquals("nice 5", limits.describe(false));
+    }
+
+    @Test
+    public void cgroupLimitsNeedDelegatedControllers() {
+        assertNull(new ServerLimits(null, 0, "1G", 50).missingControllers("cpuset cpu io memory pids\n"));
+        assertEquals("memory, cpu", new ServerLimits(null, 0, "1G", 50).missingControllers("pids\n"));
+        assertEquals("cpu", new ServerLimits(null, 0, null, 50).missingControllers("memory pids"));
+        assertNull(new ServerLimits(null, 0, "1G", 0).missingControllers("memory"));
+    }
+}
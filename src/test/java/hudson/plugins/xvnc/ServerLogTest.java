@@ -0,0 +1,35 @@
+package hudson.plugins.xvnc;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+
+public class ServerLogTest {
+
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void outputGoesToFile() throws Exception {
+        File log = tmp.newFile();
+        Files.write(log.toPath(), "previous build\n".getBytes(StandardCharsets.UTF_8));
+        ProcessBuilder pb = new ProcessBuilder(ServerLog.redirect(new String[] {"sh", "-c", "echo out; echo err >&2"}));
+        pb.environment().put(ServerLog.ENV, log.getAbsolutePath());
+        assertEquals(0, pb.start().waitFor());
+        assertEquals(Arrays.asList("out", "err"), Files.readAllLines(log.toPath(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void tail() throws Exception {
+        File log = tmp.newFile();
+        assertEquals("", ServerLog.tail(new File(tmp.getRoot(), "missing"), 4));
+        Files.write(log.toPath(), "0123456789".getBytes(StandardCharsets.US_ASCII));
+        assertEquals("6789", ServerLog.tail(log, 4));
+        assertEquals("0123456789", ServerLog.tail(log, 100));
+    }
+}
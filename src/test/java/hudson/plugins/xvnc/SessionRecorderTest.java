@@ -0,0 +1,126 @@
+package hudson.plugins.xvnc;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SessionRecorderTest {
+
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void recordsKeyframeThenOnlyChangedRectangles() throws Exception {
+        final ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        Thread fakeServer = new Thread() {
+            @Override public void run() {
+                try (Socket socket = server.accept()) {
+                    serve(socket);
+                } catch (IOException x) {
+                    x.printStackTrace();
+                }
+            }
+        };
+        fakeServer.start();
+        File file = tmp.newFile();
+        SessionRecorder recorder = new SessionRecorder(file, 1 << 20, TimeUnit.HOURS.toMillis(1));
+        try (RfbClient client = RfbClient.connect(InetAddress.getLoopbackAddress().getHostAddress(), server.getLocalPort(), 1000)) {
+            client.run(recorder, 0, 0);
+            fail("Expected the server to go away");
+        } catch (EOFException x) {
+            // the fake server disconnects after two updates
+        } finally {
+            recorder.close();
+            server.close();
+        }
+        fakeServer.join();
+
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            byte[] magic = new byte[8];
+            in.readFully(magic);
+            assertArrayEquals(SessionRecorder.MAGIC, magic);
+            assertThat(in.readUnsignedShort(), equalTo(4));
+            assertThat(in.readUnsignedShort(), equalTo(2));
+            assertThat(in.readUnsignedByte(), equalTo(RfbClient.BYTES_PER_PIXEL));
+
+            assertThat(in.readUnsignedByte(), equalTo(SessionRecorder.KEYFRAME));
+            in.readInt();
+            assertThat(in.readUnsignedShort(), equalTo(4));
+            assertThat(in.readUnsignedShort(), equalTo(2));
+            in.readFully(new byte[in.readInt()]);
+
+            assertThat(in.readUnsignedByte(), equalTo(SessionRecorder.RECTANGLE));
+            in.readInt();
+            assertThat(in.readUnsignedShort(), equalTo(1));
+            assertThat(in.readUnsignedShort(), equalTo(1));
+            assertThat(in.readUnsignedShort(), equalTo(1));
+            assertThat(in.readUnsignedShort(), equalTo(1));
+            in.readFully(new byte[in.readInt()]);
+
+            assertThat("one keyframe indexed", in.readInt(), equalTo(1));
+            in.readInt();
+            assertThat("keyframe follows the header", in.readLong(), equalTo(13L));
+            in.readLong();
+            in.readFully(magic);
+            assertArrayEquals(SessionRecorder.INDEX_MAGIC, magic);
+            assertThat(in.read(), equalTo(-1));
+        }
+    }
+
+    /**
+     * Speaks just enough RFB 3.8 to send a 4x2 screen and then change one pixel.
+     */
+    private static void serve(Socket socket) throws IOException {
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        out.write("RFB 003.008\n".getBytes(StandardCharsets.US_ASCII));
+        in.readFully(new byte[12]);
+        out.writeByte(1);
+        out.writeByte(1); // None
+        in.readUnsignedByte();
+        out.writeInt(0);
+        in.readUnsignedByte(); // shared
+        out.writeShort(4);
+        out.writeShort(2);
+        out.write(new byte[16]);
+        out.writeInt(1);
+        out.writeByte('x');
+        in.readFully(new byte[20]); // SetPixelFormat
+        in.readFully(new byte[4 + 2 * 4]); // SetEncodings
+        in.readFully(new byte[10]); // FramebufferUpdateRequest
+        update(out, 0, 0, 4, 2);
+        in.readFully(new byte[10]);
+        update(out, 1, 1, 1, 1);
+        in.readFully(new byte[10]);
+        out.flush();
+    }
+
+    private static void update(DataOutputStream out, int x, int y, int w, int h) throws IOException {
+        out.writeByte(0);
+        out.writeByte(0);
+        out.writeShort(1);
+        out.writeShort(x);
+        out.writeShort(y);
+        out.writeShort(w);
+        out.writeShort(h);
+        out.writeInt(0); // Raw
+        out.write(new byte[w * h * RfbClient.BYTES_PER_PIXEL]);
+        out.flush();
+    }
+}
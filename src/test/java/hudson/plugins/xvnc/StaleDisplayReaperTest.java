@@ -0,0 +1,180 @@
+package hudson.plugins.xvnc;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class StaleDisplayReaperTest {
+
+    private static final long GRACE = TimeUnit.MINUTES.toMillis(2);
+    private static final Set<Integer> NONE = Collections.emptySet();
+
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File dir;
+    private final List<Process> processes = new ArrayList<Process>();
+
+    @Before
+    public void unix() throws Exception {
+        assumeTrue(File.pathSeparatorChar == ':' && new File("/bin/sh").canExecute());
+        dir = tmp.newFolder("tmp");
+    }
+
+    @After
+    public void stopProcesses() {
+        for (Process p : processes) {
+            p.destroyForcibly();
+        }
+    }
+
+    @Test
+    public void reapsLockOfDeadServer() throws Exception {
+        File lock = lock(10, deadPid(), GRACE * 2);
+        File socket = new File(dir, ".X11-unix/X10");
+        Files.createDirectories(socket.getParentFile().toPath());
+        Files.createFile(socket.toPath());
+        assertEquals(Collections.singletonList(10), reap(NONE, null));
+        assertFalse(lock.exists());
+        assertFalse(socket.exists());
+    }
+
+    @Test
+    public void skipsDisplaysOutOfRange() throws Exception {
+        File lock = lock(5, deadPid(), GRACE * 2);
+        assertEquals(Collections.emptyList(), reap(NONE, null));
+        assertTrue(lock.exists());
+    }
+
+    @Test
+    public void skipsAllocatedDisplays() throws Exception {
+        File lock = lock(10, deadPid(), GRACE * 2);
+        assertEquals(Collections.emptyList(), reap(Collections.singleton(10), null));
+        assertTrue(lock.exists());
+    }
+
+    @Test
+    public void skipsRecentLocks() throws Exception {
+        File lock = lock(10, deadPid(), 0);
+        assertEquals(Collections.emptyList(), reap(NONE, null));
+        assertTrue(lock.exists());
+    }
+
+    @Test
+    public void skipsDisplaysLockedOnTheHost() throws Exception {
+        String hostLocks = tmp.newFolder("locks").getAbsolutePath();
+        assertEquals(10, (int) new HostDisplays.Acquire(hostLocks, 10, 10, NONE).call());
+        try {
+            File lock = lock(10, deadPid(), GRACE * 2);
+            assertEquals(Collections.emptyList(), reap(NONE, hostLocks));
+            assertTrue(lock.exists());
+        } finally {
+            new HostDisplays.Release(hostLocks, 10).call();
+        }
+    }
+
+    @Test
+    public void leavesRunningServerWithoutHostLocks() throws Exception {
+        String pid = spawn(fakeVncServer());
+        File lock = lock(10, pid, GRACE * 2);
+        assertEquals(Collections.emptyList(), reap(NONE, null));
+        assertTrue(lock.exists());
+        assertTrue(processes.get(0).isAlive());
+    }
+
+    @Test
+    public void killsOrphanedVncServerWithHostLocks() throws Exception {
+        String pid = spawn(fakeVncServer());
+        File lock = lock(10, pid, GRACE * 2);
+        assertEquals(Collections.singletonList(10), reap(NONE, tmp.newFolder("locks").getAbsolutePath()));
+        assertFalse(lock.exists());
+        assertTrue(processes.get(0).waitFor(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void leavesOtherProcesses() throws Exception {
+        String pid = spawn(sleep().getAbsolutePath());
+        File lock = lock(10, pid, GRACE * 2);
+        assertEquals(Collections.emptyList(), reap(NONE, tmp.newFolder("locks").getAbsolutePath()));
+        assertTrue(lock.exists());
+        assertTrue(processes.get(0).isAlive());
+    }
+
+    @Test
+    public void leavesServerItCannotSignal() throws Exception {
+        // Owned by root; unless run as root, kill -0 fails without telling the process is gone.
+        File lock = lock(10, "1", GRACE * 2);
+        assertEquals(Collections.emptyList(), reap(NONE, null));
+        assertEquals(Collections.emptyList(), reap(NONE, tmp.newFolder("locks").getAbsolutePath()));
+        assertTrue(lock.exists());
+    }
+
+    private List<Integer> reap(Set<Integer> allocated, String hostLockDirectory) throws IOException {
+        return new StaleDisplayReaper.Reap(dir.getAbsolutePath(), 10, 20, allocated, hostLockDirectory, GRACE).call();
+    }
+
+    private File lock(int displayNumber, String pid, long age) throws IOException {
+        File lock = new File(dir, ".X" + displayNumber + "-lock");
+        Files.write(lock.toPath(), ("      " + pid + "\n").getBytes(StandardCharsets.US_ASCII));
+        assertTrue(lock.setLastModified(System.currentTimeMillis() - age));
+        return lock;
+    }
+
+    private static File sleep() {
+        for (String path : Arrays.asList("/bin/sleep", "/usr/bin/sleep")) {
+            File sleep = new File(path);
+            if (sleep.canExecute()) {
+                return sleep;
+            }
+        }
+        assumeTrue("no sleep command", false);
+        return null;
+    }
+
+    /**
+     * A copy of <code>sleep</code> named like a VNC server.
+     */
+    private String fakeVncServer() throws IOException {
+        File server = new File(tmp.newFolder("bin"), "Xvnc");
+        Files.copy(sleep().toPath(), server.toPath());
+        assertTrue(server.setExecutable(true));
+        return server.getAbsolutePath();
+    }
+
+    /**
+     * Starts a process sleeping for a while.
+     * @return its pid
+     */
+    private String spawn(String program) throws IOException {
+        Process p = new ProcessBuilder("sh", "-c", "echo $$; exec \"$0\" 60", program).start();
+        processes.add(p);
+        BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream(), StandardCharsets.US_ASCII));
+        return r.readLine().trim();
+    }
+
+    private static String deadPid() throws Exception {
+        Process p = new ProcessBuilder("sh", "-c", "echo $$").start();
+        BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream(), StandardCharsets.US_ASCII));
+        String pid = r.readLine().trim();
+        assertEquals(0, p.waitFor());
+        return pid;
+    }
+}
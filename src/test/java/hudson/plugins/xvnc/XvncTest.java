@@ -45,6 +45,7 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 import org.jvnet.hudson.test.Bug;
+import org.jvnet.hudson.test.FailureBuilder;
 import org.jvnet.hudson.test.JenkinsRule;
 import org.jvnet.hudson.test.TestBuilder;
 
@@ -55,10 +56,14 @@ import java.util.Collections;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.not;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assume.assumeThat;
 
@@ -116,6 +121,23 @@ public class XvncTest {
         j.assertLogContains(Messages.Xvnc_TAKING_SCREENSHOT(), build);
     }
 
+    @Test
+    public void skipScreenshotOfSuccessfulBuildWhenOnlyOnFailure() throws Exception {
+        FreeStyleProject p = j.jenkins.createProject(FreeStyleProject.class, "project");
+
+        runXvnc(p, true, false);
+        p.getBuildWrappersList().get(Xvnc.class).screenshotPolicy = ScreenshotPolicy.FAILURE;
+
+        FreeStyleBuild build = j.buildAndAssertSuccess(p);
+        j.assertLogNotContains(Messages.Xvnc_TAKING_SCREENSHOT(), build);
+        assertFalse(build.getArtifactManager().root().child(ScreenshotFormat.JPEG.getFileName()).exists());
+
+        p.getBuildersList().add(new FailureBuilder());
+        build = j.assertBuildStatus(Result.FAILURE, p.scheduleBuild2(0).get());
+        j.assertLogContains(Messages.Xvnc_TAKING_SCREENSHOT(), build);
+        assertTrue(build.getArtifactManager().root().child(ScreenshotFormat.JPEG.getFileName()).isFile());
+    }
+
     @Test
     public void vncCommandVariable() throws Exception {
         FreeStyleProject p = j.jenkins.createProject(FreeStyleProject.class, "project");
@@ -153,17 +175,80 @@ public class XvncTest {
         FreeStyleProject p = j.jenkins.createProject(FreeStyleProject.class, "project");
 
         // Blacklist
-        runXvnc(p).xvnc = "vncserver-broken :$DISPLAY_NUMBER";
+        DescriptorImpl descriptor = runXvnc(p);
+        descriptor.xvnc = "vncserver-broken :$DISPLAY_NUMBER";
+        descriptor.minDisplayNumber = descriptor.maxDisplayNumber = 44;
         j.assertBuildStatus(Result.FAILURE, p.scheduleBuild2(0).get());
 
-        // Should still fail
-        runXvnc(p);
-        FreeStyleBuild build = p.scheduleBuild2(0).get();
-        j.assertBuildStatus(Result.FAILURE, p.scheduleBuild2(0).get());
+        // Not used again while another display is available
+        descriptor.xvnc = "true";
+        descriptor.maxDisplayNumber = 45;
+        for (int i = 0; i < 5; i++) {
+            j.buildAndAssertSuccess(p);
+        }
+        DisplayAllocator.Snapshot state = Xvnc.getAllocator(j.jenkins).getSnapshot();
+        assertEquals(Collections.emptySet(), state.getAllocated());
+        assertEquals(Collections.singleton(44), state.getBlacklisted());
+
+        // Given another chance once nothing else is left
+        descriptor.maxDisplayNumber = 44;
+        j.buildAndAssertSuccess(p);
+        assertEquals(Collections.emptySet(), Xvnc.getAllocator(j.jenkins).getSnapshot().getBlacklisted());
+    }
+
+    @Test
+    public void parallelLaunchBlacklistsEveryFailedCandidate() throws Exception {
+        FreeStyleProject p = j.jenkins.createProject(FreeStyleProject.class, "project");
 
-        @SuppressWarnings("deprecation")
-        String log = build.getLog();
-        assertTrue(log, log.contains("All available display numbers are allocated or blacklisted"));
+        DescriptorImpl descriptor = runXvnc(p);
+        p.getBuildWrappersList().get(Xvnc.class).parallelLaunches = 3;
+        descriptor.xvnc = "vncserver-broken :$DISPLAY_NUMBER";
+        descriptor.minDisplayNumber = 40;
+        descriptor.maxDisplayNumber = 42;
+        FreeStyleBuild build = j.assertBuildStatus(Result.FAILURE, p.scheduleBuild2(0).get());
+        j.assertLogContains("Failed to start an X server", build);
+
+        DisplayAllocator.Snapshot state = Xvnc.getAllocator(j.jenkins).getSnapshot();
+        assertEquals(Collections.emptySet(), state.getAllocated());
+        assertEquals(3, state.getBlacklisted().size());
+    }
+
+    @Test
+    public void missingServerProgramBlacklistsItsDisplay() throws Exception {
+        FreeStyleProject p = j.jenkins.createProject(FreeStyleProject.class, "project");
+
+        DescriptorImpl descriptor = runXvnc(p);
+        descriptor.xvnc = "vncserver-broken :$DISPLAY_NUMBER";
+        descriptor.minDisplayNumber = descriptor.maxDisplayNumber = 43;
+        FreeStyleBuild build = j.assertBuildStatus(Result.FAILURE, p.scheduleBuild2(0).get());
+        j.assertLogContains("Cannot run program \"vncserver-broken\"", build);
+        j.assertLogContains("blacklisting display #43", build);
+
+        DisplayAllocator.Snapshot state = Xvnc.getAllocator(j.jenkins).getSnapshot();
+        assertEquals(Collections.emptySet(), state.getAllocated());
+        assertEquals(Collections.singleton(43), state.getBlacklisted());
+    }
+
+    @Test
+    public void screenshotRequestsAreOnlyServedWhenAllowed() throws Exception {
+        FreeStyleProject p = j.jenkins.createProject(FreeStyleProject.class, "project");
+        Xvnc xvnc = fakeXvncRun(p);
+        final AtomicReference<String> script = new AtomicReference<String>();
+        p.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                String path = build.getEnvironment(listener).get(ScreenshotQueue.ENV);
+                // Left behind only while the build runs.
+                script.set(path != null && new File(path).isFile() ? path : null);
+                return true;
+            }
+        });
+        j.buildAndAssertSuccess(p);
+        assertNull(script.get());
+
+        xvnc.screenshotRequests = true;
+        j.buildAndAssertSuccess(p);
+        assertNotNull(script.get());
     }
 
     @Test
@@ -0,0 +1,180 @@
+package hudson.plugins.xvnc;
+
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import hudson.plugins.xvnc.Xvnc.DescriptorImpl;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestBuilder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class XvncWatchdogTest {
+
+    private static final int DISPLAY = 57;
+
+    @Rule public JenkinsRule j = new JenkinsRule();
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    private long interval;
+    private File dir;
+
+    @Before
+    public void fakeServer() throws Exception {
+        assumeTrue(new File("/bin/sh").canExecute());
+        interval = XvncWatchdog.INTERVAL;
+        XvncWatchdog.INTERVAL = 1;
+        dir = tmp.newFolder("fake");
+        // A server in the foreground which dies each time a "die" file shows up, consuming it.
+        File server = new File(dir, "fake-xvnc");
+        Files.write(server.toPath(), ("#!/bin/sh\n" +
+                "echo started >> " + dir + "/starts\n" +
+                "while ! rm " + dir + "/die 2>/dev/null; do sleep 0.2; done\n").getBytes(StandardCharsets.US_ASCII));
+        assertTrue(server.setExecutable(true));
+        DescriptorImpl descriptor = j.jenkins.getDescriptorByType(DescriptorImpl.class);
+        descriptor.xvnc = server + " :$DISPLAY_NUMBER";
+        descriptor.minDisplayNumber = descriptor.maxDisplayNumber = DISPLAY;
+    }
+
+    @After
+    public void restoreInterval() throws IOException {
+        XvncWatchdog.INTERVAL = interval;
+        Files.deleteIfExists(DisplayProbe.lockFile(DISPLAY).toPath());
+        Files.deleteIfExists(DisplayProbe.socketFile(DISPLAY).toPath());
+    }
+
+    @Test
+    public void deadServerIsRestarted() throws Exception {
+        FreeStyleProject p = project(1);
+        p.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?,?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                kill();
+                awaitRestarts(build, 1);
+                return true;
+            }
+        });
+        FreeStyleBuild build = j.buildAndAssertSuccess(p);
+        j.assertLogContains(Messages.Xvnc_SERVER_RESTARTING(DISPLAY, 1, 1), build);
+        XvncRestartAction action = build.getAction(XvncRestartAction.class);
+        assertNotNull(action);
+        assertEquals(1, action.getRestarts());
+        assertEquals(DISPLAY, action.getDisplayNumber());
+        assertEquals(2, Files.readAllLines(new File(dir, "starts").toPath()).size());
+    }
+
+    @Test
+    public void buildIsAbortedOnceRestartsAreUsedUp() throws Exception {
+        FreeStyleProject p = project(1);
+        p.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?,?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                kill();
+                awaitRestarts(build, 1);
+                kill();
+                // Interrupted by the watchdog.
+                Thread.sleep(TimeUnit.MINUTES.toMillis(2));
+                return true;
+            }
+        });
+        FreeStyleBuild build = j.assertBuildStatus(Result.FAILURE, p.scheduleBuild2(0).get());
+        j.assertLogContains(Messages.Xvnc_SERVER_DIED(DISPLAY), build);
+        assertEquals(1, build.getAction(XvncRestartAction.class).getRestarts());
+    }
+
+    @Test
+    public void buildIsAbortedRightAwayWithoutRestarts() throws Exception {
+        FreeStyleProject p = project(0);
+        p.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?,?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                kill();
+                Thread.sleep(TimeUnit.MINUTES.toMillis(2));
+                return true;
+            }
+        });
+        FreeStyleBuild build = j.assertBuildStatus(Result.FAILURE, p.scheduleBuild2(0).get());
+        j.assertLogContains(Messages.Xvnc_SERVER_DIED(DISPLAY), build);
+        assertNull(build.getAction(XvncRestartAction.class));
+    }
+
+    @Test
+    public void killedBackgroundServerIsRestarted() throws Exception {
+        assumeTrue(new File("/proc/self").isDirectory());
+        File socketDirectory = DisplayProbe.socketFile(DISPLAY).getParentFile();
+        assumeTrue(socketDirectory.mkdirs() || socketDirectory.canWrite());
+        // Like vncserver: leaves a server running in the background, which keeps its lock file and socket when killed.
+        File vncserver = new File(dir, "vncserver");
+        Files.write(vncserver.toPath(), ("#!/bin/sh\n" +
+                "if [ \"$1\" = -kill ]; then\n" +
+                "  kill $(cat " + DisplayProbe.lockFile(DISPLAY) + ") 2>/dev/null\n" +
+                "  rm -f " + DisplayProbe.lockFile(DISPLAY) + " " + DisplayProbe.socketFile(DISPLAY) + "\n" +
+                "  exit 0\n" +
+                "fi\n" +
+                "echo started >> " + dir + "/starts\n" +
+                "sleep 600 </dev/null >/dev/null 2>&1 &\n" +
+                "echo $! > " + DisplayProbe.lockFile(DISPLAY) + "\n" +
+                "touch " + DisplayProbe.socketFile(DISPLAY) + "\n").getBytes(StandardCharsets.US_ASCII));
+        assertTrue(vncserver.setExecutable(true));
+        j.jenkins.getDescriptorByType(DescriptorImpl.class).xvnc = vncserver + " :$DISPLAY_NUMBER";
+        FreeStyleProject p = project(1);
+        p.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?,?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                String pid = DisplayProbe.serverPid(DISPLAY);
+                assertNotNull(pid);
+                assertEquals(0, new ProcessBuilder("kill", "-9", pid).start().waitFor());
+                assertTrue(DisplayProbe.socketFile(DISPLAY).exists());
+                awaitRestarts(build, 1);
+                return true;
+            }
+        });
+        FreeStyleBuild build = j.buildAndAssertSuccess(p);
+        j.assertLogContains(Messages.Xvnc_SERVER_RESTARTING(DISPLAY, 1, 1), build);
+        assertEquals(2, Files.readAllLines(new File(dir, "starts").toPath()).size());
+    }
+
+    private FreeStyleProject project(int maxServerRestarts) throws IOException {
+        FreeStyleProject p = j.createFreeStyleProject();
+        Xvnc xvnc = new Xvnc(false, false);
+        xvnc.watchServer = true;
+        xvnc.maxServerRestarts = maxServerRestarts;
+        p.getBuildWrappersList().add(xvnc);
+        return p;
+    }
+
+    private void kill() throws IOException {
+        Files.createFile(new File(dir, "die").toPath());
+    }
+
+    private static void awaitRestarts(AbstractBuild<?,?> build, int restarts) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (true) {
+            XvncRestartAction action = build.getAction(XvncRestartAction.class);
+            if (action != null && action.getRestarts() >= restarts) {
+                return;
+            }
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("X server was not restarted in time");
+            }
+            Thread.sleep(100);
+        }
+    }
+}
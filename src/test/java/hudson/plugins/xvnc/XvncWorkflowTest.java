@@ -28,6 +28,9 @@ import hudson.model.Node;
 import hudson.slaves.DumbSlave;
 import hudson.slaves.NodeProperty;
 import hudson.slaves.RetentionStrategy;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.Collections;
 import java.util.Map;
 import org.jenkinsci.plugins.structs.describable.DescribableModel;
@@ -39,6 +42,7 @@ import org.jenkinsci.plugins.workflow.steps.StepConfigTester;
 import org.jenkinsci.plugins.workflow.test.steps.SemaphoreStep;
 import org.junit.Test;
 import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
 import org.junit.ClassRule;
 import org.junit.Rule;
 import org.junit.rules.TemporaryFolder;
@@ -101,4 +105,171 @@ public class XvncWorkflowTest {
         });
     }
 
+    @Test public void reattachesAfterRestart() throws Exception {
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                story.j.jenkins.addNode(new DumbSlave("slave", "dummy", tmp.newFolder("remoteFS").getPath(), "1", Node.Mode.NORMAL, "", story.j.createComputerLauncher(null), RetentionStrategy.NOOP, Collections.<NodeProperty<?>>emptyList())); // TODO JENKINS-26398 clumsy
+                WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "p");
+                p.setDefinition(new CpsFlowDefinition(""
+                        + "node('slave') {\n"
+                        + "  wrap([$class: 'Xvnc']) {\n"
+                        + "    semaphore 'reattachesAfterRestart'\n"
+                        + "  }\n"
+                        + "}", true));
+                WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+                SemaphoreStep.waitForStart("reattachesAfterRestart/1", b);
+            }
+        });
+        story.addStep(new Statement() {
+            @SuppressWarnings("SleepWhileInLoop")
+            @Override public void evaluate() throws Throwable {
+                WorkflowRun b = story.j.jenkins.getItemByFullName("p", WorkflowJob.class).getBuildByNumber(1);
+                DisplayAllocator allocator = Xvnc.getAllocator(story.j.jenkins.getNode("slave"));
+                boolean leased = false;
+                for (int i = 0; i < 120 && !leased; i++) {
+                    for (DisplayAllocator.Lease lease : allocator.getSnapshot().getLeases()) {
+                        leased |= lease.getHolder().equals(b.getExternalizableId());
+                    }
+                    Thread.sleep(500);
+                }
+                assertTrue("display of the resumed build is leased again", leased);
+                SemaphoreStep.success("reattachesAfterRestart/1", null);
+                story.j.assertBuildStatusSuccess(story.j.waitForCompletion(b));
+                assertTrue(allocator.getSnapshot().getAllocated().isEmpty());
+            }
+        });
+    }
+
+    @Test public void relaunchesServerKilledDuringRestart() throws Exception {
+        assumeTrue(new File("/bin/sh").canExecute());
+        final int display = 9987;
+        final File fake = tmp.newFolder("fake");
+        final File locks = tmp.newFolder("locks");
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                // A server in the foreground keeping the files of a real one in /tmp, which dies once a "die" file shows up.
+                File server = new File(fake, "fake-xvnc");
+                Files.write(server.toPath(), ("#!/bin/sh\n"
+                        + "n=${1#:}\n"
+                        + "echo started >> " + fake + "/starts\n"
+                        + "mkdir -p /tmp/.X11-unix\n"
+                        + "echo $$ > /tmp/.X$n-lock\n"
+                        + "touch /tmp/.X11-unix/X$n\n"
+                        + "trap 'rm -f /tmp/.X$n-lock /tmp/.X11-unix/X$n' EXIT\n"
+                        + "trap 'exit 1' TERM\n"
+                        + "while ! rm " + fake + "/die 2>/dev/null; do sleep 0.2; done\n").getBytes(StandardCharsets.US_ASCII));
+                assertTrue(server.setExecutable(true));
+                Xvnc.DescriptorImpl descriptor = story.j.jenkins.getDescriptorByType(Xvnc.DescriptorImpl.class);
+                descriptor.xvnc = server + " :$DISPLAY_NUMBER";
+                descriptor.minDisplayNumber = descriptor.maxDisplayNumber = display;
+                descriptor.hostLocks = true;
+                descriptor.hostLockDirectory = locks.getAbsolutePath();
+                descriptor.save();
+                story.j.jenkins.addNode(new DumbSlave("slave", "dummy", tmp.newFolder("remoteFS").getPath(), "1", Node.Mode.NORMAL, "", story.j.createComputerLauncher(null), RetentionStrategy.NOOP, Collections.<NodeProperty<?>>emptyList())); // TODO JENKINS-26398 clumsy
+                WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "p");
+                p.setDefinition(new CpsFlowDefinition(""
+                        + "node('slave') {\n"
+                        + "  wrap([$class: 'Xvnc']) {\n"
+                        + "    semaphore 'relaunchesServerKilledDuringRestart'\n"
+                        + "  }\n"
+                        + "}", true));
+                WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+                SemaphoreStep.waitForStart("relaunchesServerKilledDuringRestart/1", b);
+                // The server goes away while Jenkins restarts.
+                Files.createFile(new File(fake, "die").toPath());
+                for (int i = 0; i < 100 && DisplayProbe.lockFile(display).exists(); i++) {
+                    Thread.sleep(100);
+                }
+                assertFalse(DisplayProbe.lockFile(display).exists());
+            }
+        });
+        story.addStep(new Statement() {
+            @SuppressWarnings("SleepWhileInLoop")
+            @Override public void evaluate() throws Throwable {
+                WorkflowRun b = story.j.jenkins.getItemByFullName("p", WorkflowJob.class).getBuildByNumber(1);
+                File starts = new File(fake, "starts");
+                try {
+                    for (int i = 0; i < 120 && !(Files.readAllLines(starts.toPath()).size() == 2 && new DisplayProbe.Running(display).call()); i++) {
+                        Thread.sleep(500);
+                    }
+                    assertEquals("started again", 2, Files.readAllLines(starts.toPath()).size());
+                    assertTrue(new DisplayProbe.Running(display).call());
+                    assertTrue("display locked again on the host", HostDisplays.isLocked(locks.getAbsolutePath(), display));
+                    SemaphoreStep.success("relaunchesServerKilledDuringRestart/1", null);
+                    story.j.assertBuildStatusSuccess(story.j.waitForCompletion(b));
+                    assertFalse(HostDisplays.isLocked(locks.getAbsolutePath(), display));
+                } finally {
+                    new File(fake, "die").createNewFile();
+                }
+            }
+        });
+    }
+
+    @Test public void watchesServerAgainAfterRestart() throws Exception {
+        assumeTrue(new File("/bin/sh").canExecute());
+        final int display = 9986;
+        final File fake = tmp.newFolder("fake");
+        final long interval = XvncWatchdog.INTERVAL;
+        XvncWatchdog.INTERVAL = 1;
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                // As in relaunchesServerKilledDuringRestart.
+                File server = new File(fake, "fake-xvnc");
+                Files.write(server.toPath(), ("#!/bin/sh\n"
+                        + "n=${1#:}\n"
+                        + "echo started >> " + fake + "/starts\n"
+                        + "mkdir -p /tmp/.X11-unix\n"
+                        + "echo $$ > /tmp/.X$n-lock\n"
+                        + "touch /tmp/.X11-unix/X$n\n"
+                        + "trap 'rm -f /tmp/.X$n-lock /tmp/.X11-unix/X$n' EXIT\n"
+                        + "trap 'exit 1' TERM\n"
+                        + "while ! rm " + fake + "/die 2>/dev/null; do sleep 0.2; done\n").getBytes(StandardCharsets.US_ASCII));
+                assertTrue(server.setExecutable(true));
+                Xvnc.DescriptorImpl descriptor = story.j.jenkins.getDescriptorByType(Xvnc.DescriptorImpl.class);
+                descriptor.xvnc = server + " :$DISPLAY_NUMBER";
+                descriptor.minDisplayNumber = descriptor.maxDisplayNumber = display;
+                descriptor.save();
+                story.j.jenkins.addNode(new DumbSlave("slave", "dummy", tmp.newFolder("remoteFS").getPath(), "1", Node.Mode.NORMAL, "", story.j.createComputerLauncher(null), RetentionStrategy.NOOP, Collections.<NodeProperty<?>>emptyList())); // TODO JENKINS-26398 clumsy
+                WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "p");
+                p.setDefinition(new CpsFlowDefinition(""
+                        + "node('slave') {\n"
+                        + "  wrap([$class: 'Xvnc', watchServer: true, maxServerRestarts: 1]) {\n"
+                        + "    semaphore 'watchesServerAgainAfterRestart'\n"
+                        + "  }\n"
+                        + "}", true));
+                WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+                SemaphoreStep.waitForStart("watchesServerAgainAfterRestart/1", b);
+            }
+        });
+        story.addStep(new Statement() {
+            @SuppressWarnings("SleepWhileInLoop")
+            @Override public void evaluate() throws Throwable {
+                WorkflowRun b = story.j.jenkins.getItemByFullName("p", WorkflowJob.class).getBuildByNumber(1);
+                File starts = new File(fake, "starts");
+                try {
+                    DisplayAllocator allocator = Xvnc.getAllocator(story.j.jenkins.getNode("slave"));
+                    for (int i = 0; i < 120 && allocator.getSnapshot().getLeases().isEmpty(); i++) {
+                        Thread.sleep(500);
+                    }
+                    // Give the resumed build time to start watching again, then kill the server.
+                    Thread.sleep(2000);
+                    int started = Files.readAllLines(starts.toPath()).size();
+                    Files.createFile(new File(fake, "die").toPath());
+                    for (int i = 0; i < 120 && b.getAction(XvncRestartAction.class) == null; i++) {
+                        Thread.sleep(500);
+                    }
+                    XvncRestartAction action = b.getAction(XvncRestartAction.class);
+                    assertNotNull("server restarted by the watchdog of the resumed build", action);
+                    assertEquals(1, action.getRestarts());
+                    assertEquals(started + 1, Files.readAllLines(starts.toPath()).size());
+                    SemaphoreStep.success("watchesServerAgainAfterRestart/1", null);
+                    story.j.assertBuildStatusSuccess(story.j.waitForCompletion(b));
+                } finally {
+                    XvncWatchdog.INTERVAL = interval;
+                    new File(fake, "die").createNewFile();
+                }
+            }
+        });
+    }
+
 }